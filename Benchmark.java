@@ -0,0 +1,165 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Benchmark of the add/remove/contains mixes, with the methodology of JMH:
+ * each configuration (distribution, population, number of threads) runs in
+ * FORKS fresh JVMs, on a set prefilled with the population, with WARMUP
+ * time-boxed iterations and then MEASUREMENT ones.
+ *
+ * An iteration is a timed run of the streams of ThreadedTests: the threads
+ * start together from a barrier, and replay operations and keys generated
+ * before the measurement, so that the random generators are not measured. The score is the mean of the measured
+ * iterations of every fork, with the error of its 99.9% confidence interval
+ * (Student's t), as JMH reports it.
+ */
+public class Benchmark {
+    // Distributions (%age of add, remove and contains)
+    static final int[][] DISTRIBUTIONS = { { 10, 10, 80 }, { 50, 50, 0 }, { 25, 25, 50 }, { 5, 5, 90 }, };
+    static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    static final int FORKS = 2;
+    static final int WARMUP = 3;
+    static final int MEASUREMENT = 5;
+    static final long ITERATION_NANOS = 1_000_000_000L;
+
+    // Operations generated by thread, replayed in a loop
+    private static final int STREAM = 1 << 18;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 5 && args[0].equals("fork")) {
+            fork(args[1], DISTRIBUTIONS[Integer.parseInt(args[2])], Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]));
+            // Stop the background threads of the engine, if any
+            System.exit(0);
+        }
+        run(args.length > 0 ? args[0] : "int");
+    }
+
+    /**
+     * Run every configuration on an engine, and print the tables of the scores
+     *
+     * @param engine one of ThreadedTests.ENGINES
+     */
+    static void run(String engine) throws IOException, InterruptedException {
+        System.out.println("## Benchmark (" + engine + "), " + FORKS + " forks, " + WARMUP + " warmup and "
+                + MEASUREMENT + " measurement iterations of " + ITERATION_NANOS / 1_000_000 + "ms");
+        for (int d = 0; d < DISTRIBUTIONS.length; d++) {
+            int[] distribution = DISTRIBUTIONS[d];
+            System.out.println("### Distribution " + (d + 1) + ": " + distribution[0] + "% add, " + distribution[1]
+                    + "% remove, " + distribution[2] + "% contains");
+            System.out.println("| Population | Threads | Throughput (ops/s)      | Average time (ns/op)     |");
+            System.out.println("|------------|---------|-------------------------|--------------------------|");
+            for (int generatorType = 0; generatorType < 2; generatorType++) {
+                for (int threadCount : THREAD_COUNTS) {
+                    double[] throughputs = new double[FORKS * MEASUREMENT];
+                    double[] averageTimes = new double[FORKS * MEASUREMENT];
+                    int measured = 0;
+                    for (int fork = 0; fork < FORKS; fork++) {
+                        for (long[] iteration : launch(engine, d, generatorType, threadCount)) {
+                            throughputs[measured] = iteration[0] * 1e9 / iteration[1];
+                            averageTimes[measured] = (double) iteration[1] * threadCount / iteration[0];
+                            measured++;
+                        }
+                    }
+                    System.out.println("| " + (generatorType == 0 ? "First " : "Second") + "     | "
+                            + String.format(Locale.ROOT, "%-7d | %-23s | %-24s |", threadCount,
+                                    score(throughputs, "%,.0f"), score(averageTimes, "%,.1f")));
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Run a configuration in a new JVM, with the options and class path of this one
+     *
+     * @return the measured iterations, as { operations, nanoseconds }
+     */
+    private static List<long[]> launch(String engine, int distribution, int generatorType, int threadCount)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(Arrays.asList("Benchmark", "fork", engine, String.valueOf(distribution),
+                String.valueOf(generatorType), String.valueOf(threadCount)));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        List<long[]> iterations = new ArrayList<>();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 4 && fields[0].equals("iteration")) {
+                    if (fields[1].equals("measurement"))
+                        iterations.add(new long[] { Long.parseLong(fields[2]), Long.parseLong(fields[3]) });
+                } else {
+                    System.err.println(line);
+                }
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0 || iterations.size() != MEASUREMENT)
+            throw new IllegalStateException("The fork failed (exit code " + exit + ")");
+        return iterations;
+    }
+
+    /**
+     * Body of a fork: fill the set, generate the streams, and print the
+     * iterations as "iteration (warmup|measurement) operations nanoseconds"
+     */
+    private static void fork(String engine, int[] distribution, int generatorType, int threadCount) {
+        ConcurrentIntSet set = ThreadedTests.newEngine(engine);
+        Main.Generator generator = generatorType == 0 ? new Main.FirstGenerator() : new Main.SecondGenerator();
+        for (int i = 0; i < 1e6; i++)
+            set.add(generator.generate());
+
+        ThreadedTests test = new ThreadedTests(threadCount, threadCount * STREAM, distribution[0], distribution[1],
+                set);
+        ThreadedTests.Streams streams = test.generateStreams(generatorType);
+        for (int iteration = 0; iteration < WARMUP + MEASUREMENT; iteration++) {
+            long[] run = test.runStreams(streams, ITERATION_NANOS);
+            System.out.println("iteration " + (iteration < WARMUP ? "warmup" : "measurement") + " " + run[0] + " "
+                    + run[1]);
+        }
+    }
+
+    /**
+     * @return "mean +/- error", the error being the half width of the 99.9%
+     *         confidence interval of the mean
+     */
+    static String score(double[] samples, String format) {
+        double mean = 0;
+        for (double sample : samples)
+            mean += sample;
+        mean /= samples.length;
+        double variance = 0;
+        for (double sample : samples)
+            variance += (sample - mean) * (sample - mean);
+        variance /= samples.length - 1;
+        double error = studentT999(samples.length - 1) * Math.sqrt(variance / samples.length);
+        return String.format(Locale.ROOT, format + " +/- " + format, mean, error);
+    }
+
+    /**
+     * @return the 0.9995 quantile of Student's t distribution, for a two-sided 99.9% interval
+     */
+    private static double studentT999(int degreesOfFreedom) {
+        final double[] quantiles = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+                4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745,
+                3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+        if (degreesOfFreedom <= quantiles.length)
+            return quantiles[degreesOfFreedom - 1];
+        // Normal quantile beyond
+        return 3.291;
+    }
+}
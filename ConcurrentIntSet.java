@@ -0,0 +1,85 @@
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+
+/**
+ * Set of int keys shared by threads: the operations of every engine, so that
+ * ThreadedTests runs any of them on the same workloads.
+ *
+ * The int engines implement it directly. The sets of objects (the skiplists of
+ * T, and the java.util.concurrent sets) are wrapped by the adapters of() and
+ * boxed(), that box each key as an Integer.
+ */
+public interface ConcurrentIntSet {
+    boolean add(int x);
+
+    boolean remove(int x);
+
+    boolean contains(int x);
+
+    /**
+     * @throws UnsupportedOperationException if the engine does not count its elements
+     */
+    int size();
+
+    static ConcurrentIntSet of(LockfreeConcurrentSkipListSet<Integer> set) {
+        return boxed(set::add, set::remove, set::contains, set::size);
+    }
+
+    static ConcurrentIntSet of(LazySkipListSet<Integer> set) {
+        return boxed(set::add, set::remove, set::contains, set::size);
+    }
+
+    /**
+     * Adapter of the linearization test set, that logs every operation
+     */
+    static ConcurrentIntSet of(LinearSkipListSet<Integer> set) {
+        return boxed(set::add, set::remove, set::contains, null);
+    }
+
+    /**
+     * Adapter of the linearization test set with locks, that logs every operation
+     */
+    static ConcurrentIntSet of(LockedSkipListSet<Integer> set) {
+        return boxed(set::add, set::remove, set::contains, null);
+    }
+
+    /**
+     * Adapter of a java.util set, for the baselines:
+     * java.util.concurrent.ConcurrentSkipListSet or ConcurrentHashMap.newKeySet()
+     */
+    static ConcurrentIntSet of(Set<Integer> set) {
+        return boxed(set::add, set::remove, set::contains, set::size);
+    }
+
+    /**
+     * Adapter of the operations of a set of Integer
+     *
+     * @param size null if the set does not count its elements
+     */
+    static ConcurrentIntSet boxed(IntPredicate add, IntPredicate remove, IntPredicate contains, IntSupplier size) {
+        return new ConcurrentIntSet() {
+            @Override
+            public boolean add(int x) {
+                return add.test(x);
+            }
+
+            @Override
+            public boolean remove(int x) {
+                return remove.test(x);
+            }
+
+            @Override
+            public boolean contains(int x) {
+                return contains.test(x);
+            }
+
+            @Override
+            public int size() {
+                if (size == null)
+                    throw new UnsupportedOperationException("size is not counted by this set");
+                return size.getAsInt();
+            }
+        };
+    }
+}
@@ -0,0 +1,94 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the interferences between the threads in find, add and remove
+ * of the lock-free skiplists, one instance by class of set, shared by all its
+ * sets. Striped (LongAdder), so that counting does not add contention.
+ *
+ * Disabled by default: ENABLED is read once from -Dskiplist.contention=true,
+ * and as it is a static final, the JIT removes the counting code when false.
+ * When enabled, the counters are registered as a platform MBean, readable with
+ * jconsole or any JMX client.
+ */
+public class ContentionCounters implements ContentionCountersMBean {
+    public static final boolean ENABLED = Boolean.getBoolean("skiplist.contention");
+
+    // Snips of a marked node by find, successful or failed. A failed snip
+    // restarts the search from the head (continue retry)
+    final LongAdder snips = new LongAdder();
+    final LongAdder failedSnips = new LongAdder();
+
+    // Failed CAS linking a new node at the level 0, that retries the add
+    final LongAdder failedBottomCas = new LongAdder();
+
+    // Failed CAS linking a new node above the level 0, each followed by a find
+    final LongAdder upperLinkRetries = new LongAdder();
+
+    // Searches restarted after an interference: a failed snip, a failed CAS
+    // at the level 0, or a failed link above it. The search of remove that
+    // unlinks its node is not one of them
+    final LongAdder refinds = new LongAdder();
+
+    // Removes that found the node, but whose level 0 was marked by another thread
+    final LongAdder lostMarkRaces = new LongAdder();
+
+    /**
+     * @param name name of the MBean, registered if the counters are enabled
+     * @return counters for a class of set
+     */
+    static ContentionCounters register(String name) {
+        ContentionCounters counters = new ContentionCounters();
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(counters,
+                        new ObjectName("skiplist:type=Contention,name=" + name));
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot register the contention counters of " + name, e);
+            }
+        }
+        return counters;
+    }
+
+    @Override
+    public long getSnips() {
+        return snips.sum();
+    }
+
+    @Override
+    public long getFailedSnips() {
+        return failedSnips.sum();
+    }
+
+    @Override
+    public long getFailedBottomCas() {
+        return failedBottomCas.sum();
+    }
+
+    @Override
+    public long getUpperLinkRetries() {
+        return upperLinkRetries.sum();
+    }
+
+    @Override
+    public long getRefinds() {
+        return refinds.sum();
+    }
+
+    @Override
+    public long getLostMarkRaces() {
+        return lostMarkRaces.sum();
+    }
+
+    @Override
+    public void reset() {
+        snips.reset();
+        failedSnips.reset();
+        failedBottomCas.reset();
+        upperLinkRetries.reset();
+        refinds.reset();
+        lostMarkRaces.reset();
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * Management interface of ContentionCounters, registered on the platform
+ * MBean server as skiplist:type=Contention,name=(name of the set)
+ */
+public interface ContentionCountersMBean {
+    long getSnips();
+
+    long getFailedSnips();
+
+    long getFailedBottomCas();
+
+    long getUpperLinkRetries();
+
+    long getRefinds();
+
+    long getLostMarkRaces();
+
+    void reset();
+}
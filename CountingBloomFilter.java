@@ -0,0 +1,119 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Concurrent counting Bloom filter of int keys: each key increments HASHES
+ * counters of 4 bits, packed by 16 in longs and updated by CAS.
+ *
+ * A key added and not removed always has its counters above 0, so a key with
+ * a counter at 0 is definitely absent. A counter that reaches 15 stays at 15
+ * (it can not be decremented safely anymore), which only adds false positives.
+ */
+public class CountingBloomFilter {
+    // Number of counters by key
+    static final int HASHES = 7;
+
+    // Number of counters by expected element, rounded up to a power of two
+    private static final int COUNTERS_PER_ELEMENT = 10;
+
+    private static final int SATURATED = 15;
+
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // Counters, 16 by long
+    private final long[] words;
+
+    // Number of counters - 1, a power of two - 1
+    private final int mask;
+
+    /**
+     * @param expectedElements number of elements for which the false positive rate is about 1%
+     */
+    public CountingBloomFilter(int expectedElements) {
+        long counters = Long.highestOneBit(Math.max(16L, (long) expectedElements * COUNTERS_PER_ELEMENT - 1) << 1);
+        if (counters > 1L << 31)
+            throw new IllegalArgumentException("Too many expected elements: " + expectedElements);
+        this.words = new long[(int) (counters >>> 4)];
+        this.mask = (int) (counters - 1);
+    }
+
+    /**
+     * Increment the counters of the key, before the key is visible in the set
+     */
+    public void add(int key) {
+        long hash = mix(key);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++)
+            update((h1 + i * h2) & mask, 1);
+    }
+
+    /**
+     * Decrement the counters of the key, once the key is not in the set anymore
+     */
+    public void remove(int key) {
+        long hash = mix(key);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++)
+            update((h1 + i * h2) & mask, -1);
+    }
+
+    /**
+     * @return false if the key is definitely not in the set
+     */
+    public boolean mightContain(int key) {
+        long hash = mix(key);
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & mask;
+            if (((long) WORDS.getVolatile(words, counter >>> 4) >>> ((counter & 15) << 2) & 15) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void update(int counter, int delta) {
+        int word = counter >>> 4;
+        int shift = (counter & 15) << 2;
+        while (true) {
+            long value = (long) WORDS.getVolatile(words, word);
+            long current = value >>> shift & 15;
+            // A saturated counter may be shared by more keys than it can count
+            if (current == SATURATED || (delta < 0 && current == 0))
+                return;
+            if (WORDS.compareAndSet(words, word, value, value + ((long) delta << shift)))
+                return;
+        }
+    }
+
+    /**
+     * @return the false positive rate expected from the counters used, (used / counters)^HASHES
+     */
+    public double falsePositiveRate() {
+        long used = 0;
+        for (int i = 0; i < words.length; i++) {
+            long value = (long) WORDS.getVolatile(words, i);
+            for (int shift = 0; shift < 64; shift += 4) {
+                if ((value >>> shift & 15) != 0)
+                    used++;
+            }
+        }
+        return Math.pow((double) used / (words.length * 16L), HASHES);
+    }
+
+    /**
+     * @return bytes of the counters
+     */
+    public long memoryBytes() {
+        return words.length * 8L;
+    }
+
+    /**
+     * 64 bits mix of the key (SplitMix64 finalizer), split in two hashes
+     */
+    private static long mix(int key) {
+        long z = key * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
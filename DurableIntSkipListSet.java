@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IntLockfreeSkipListSet that survives a crash: the successful adds and
+ * removes are appended to a write-ahead log, and a checkpoint writes a
+ * snapshot of the set and starts a new log.
+ *
+ * The directory holds the last snapshot ("snapshot") and the logs written
+ * since ("wal.<generation>"). The recovery loads the snapshot and replays the
+ * logs in order.
+ *
+ * An operation and the append of its record are done holding the lock of the
+ * stripe of its key (as in the linearization test with a lock), so that the
+ * records of a key are in the order of its operations. The set is still
+ * lock-free for contains, and the commit waits out of the lock.
+ */
+public class DurableIntSkipListSet implements ConcurrentIntSet, Closeable {
+    // Number of locks, a power of two
+    private static final int STRIPES = 1024;
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String LOG_PREFIX = "wal.";
+
+    private final Path directory;
+    private final IntLockfreeSkipListSet set;
+    private final WriteAheadLog log;
+    private final Object[] stripes = new Object[STRIPES];
+
+    // Generation of the current log
+    private long generation;
+
+    private DurableIntSkipListSet(Path directory, IntLockfreeSkipListSet set, WriteAheadLog log, long generation) {
+        this.directory = directory;
+        this.set = set;
+        this.log = log;
+        this.generation = generation;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    /**
+     * Recover the set of a directory, or create an empty one, and start a new
+     * log after a checkpoint
+     *
+     * @param directory directory of the snapshot and of the logs, created if needed
+     * @param sync      when the records are forced to the disk
+     */
+    public static DurableIntSkipListSet open(Path directory, WriteAheadLog.Sync sync) throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT);
+        IntLockfreeSkipListSet set = Files.exists(snapshot) ? IntLockfreeSkipListSet.load(snapshot)
+                : new IntLockfreeSkipListSet();
+
+        long last = 0;
+        for (long generation : generations(directory)) {
+            WriteAheadLog.replay(directory.resolve(LOG_PREFIX + generation), set);
+            last = generation;
+        }
+
+        long generation = last + 1;
+        WriteAheadLog log = new WriteAheadLog(directory.resolve(LOG_PREFIX + generation), sync);
+        DurableIntSkipListSet durable = new DurableIntSkipListSet(directory, set, log, generation);
+        // The replayed logs are not needed anymore after a snapshot
+        durable.writeSnapshot();
+        return durable;
+    }
+
+    /**
+     * @return generations of the logs of the directory, in ascending order
+     */
+    private static List<Long> generations(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*")) {
+            for (Path path : logs) {
+                try {
+                    generations.add(Long.parseLong(path.getFileName().toString().substring(LOG_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a log
+                }
+            }
+        }
+        generations.sort(null);
+        return generations;
+    }
+
+    private Object stripe(int key) {
+        return stripes[(key ^ (key >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * @throws UncheckedIOException if the record can not be written
+     */
+    @Override
+    public boolean add(int x) {
+        long sequence;
+        try {
+            synchronized (stripe(x)) {
+                if (!set.add(x))
+                    return false;
+                sequence = log.append(WriteAheadLog.ADD, x);
+            }
+            log.commit(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * @throws UncheckedIOException if the record can not be written
+     */
+    @Override
+    public boolean remove(int x) {
+        long sequence;
+        try {
+            synchronized (stripe(x)) {
+                if (!set.remove(x))
+                    return false;
+                sequence = log.append(WriteAheadLog.REMOVE, x);
+            }
+            log.commit(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(int x) {
+        return set.contains(x);
+    }
+
+    @Override
+    public int size() {
+        return set.size();
+    }
+
+    /**
+     * @return the log, to read its statistics
+     */
+    WriteAheadLog log() {
+        return log;
+    }
+
+    /**
+     * Continue the log in a new generation, write a snapshot of the set, and
+     * delete the previous logs. The operations can run meanwhile: the snapshot
+     * includes every record of the previous logs, and the replay of the new
+     * log over it gives the last state of each key.
+     */
+    public synchronized void checkpoint() throws IOException {
+        generation++;
+        log.rotate(directory.resolve(LOG_PREFIX + generation));
+        writeSnapshot();
+    }
+
+    /**
+     * Replace the snapshot by one of the set, force the directory, and delete
+     * the logs before the current generation
+     */
+    private void writeSnapshot() throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        // Forced to the disk by snapshot before its rename
+        set.snapshot(temporary);
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // The rename (and the creation of the current log) must be on the disk
+        // before the logs are deleted: otherwise a crash could keep the previous
+        // snapshot without the logs written since
+        try (FileChannel entries = FileChannel.open(directory, StandardOpenOption.READ)) {
+            entries.force(true);
+        }
+        for (long previous : generations(directory)) {
+            if (previous < generation)
+                Files.delete(directory.resolve(LOG_PREFIX + previous));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
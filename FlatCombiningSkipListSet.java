@@ -0,0 +1,204 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Flat combining front end of an IntLockfreeSkipListSet (Hendler, Incze,
+ * Shavit and Tzafrir): each thread publishes its add or remove in its own
+ * slot, and the thread that takes the combiner flag applies the requests of
+ * every slot, sorted by key, in a single pass of finger searches.
+ *
+ * An add and a remove of the same key in a batch cancel out without touching
+ * the skiplist: linearized as remove then add if the key is present, add then
+ * remove otherwise, both return true and leave the set as it was. Of the other
+ * requests of a key, all of the same kind, only the first one is applied and
+ * the next ones return false.
+ *
+ * Only the combiner writes to the skiplist, so there is no CAS contention.
+ * contains reads the skiplist directly.
+ */
+public class FlatCombiningSkipListSet implements ConcurrentIntSet {
+    // States of a slot: empty, request published, result written
+    private static final int EMPTY = 0;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int TRUE = 3;
+    private static final int FALSE = 4;
+
+    // Spins while waiting for the combiner before yielding the core
+    private static final int SPINS = 64;
+
+    final IntLockfreeSkipListSet set;
+
+    // Held by the thread that combines
+    private final AtomicBoolean combining = new AtomicBoolean();
+
+    // Head of the list of the slots, each thread pushing its own one
+    private final AtomicReference<Slot> slots = new AtomicReference<>();
+    private final ThreadLocal<Slot> localSlot = ThreadLocal.withInitial(this::register);
+
+    // Only used by the combiner: search path kept from a key to the next one,
+    // and the batch as (key << 32 | index in pending), sorted by key
+    private final IntLockfreeSkipListSet.SearchContext context;
+    private long[] batch = new long[64];
+    private Slot[] pending = new Slot[64];
+
+    // Statistics, written by the combiner
+    private long combines = 0;
+    private long requests = 0;
+    private long cancelled = 0;
+
+    public FlatCombiningSkipListSet() {
+        this(new IntLockfreeSkipListSet());
+    }
+
+    /**
+     * @param set skiplist to write through the combiner only
+     */
+    public FlatCombiningSkipListSet(IntLockfreeSkipListSet set) {
+        this.set = set;
+        this.context = set.newSearchContext();
+    }
+
+    @Override
+    public boolean add(int x) {
+        return apply(ADD, x);
+    }
+
+    @Override
+    public boolean remove(int x) {
+        return apply(REMOVE, x);
+    }
+
+    @Override
+    public boolean contains(int x) {
+        return set.contains(x);
+    }
+
+    @Override
+    public int size() {
+        return set.size();
+    }
+
+    /**
+     * @return average number of requests by batch
+     */
+    public synchronized double averageBatch() {
+        return combines == 0 ? 0 : (double) requests / combines;
+    }
+
+    /**
+     * @return number of requests answered without touching the skiplist
+     */
+    public synchronized long cancelled() {
+        return cancelled;
+    }
+
+    private Slot register() {
+        Slot slot = new Slot();
+        Slot head;
+        do {
+            head = slots.get();
+            slot.next = head;
+        } while (!slots.compareAndSet(head, slot));
+        return slot;
+    }
+
+    /**
+     * Publish a request and wait for its result, combining if no other thread does
+     */
+    private boolean apply(int operation, int key) {
+        Slot slot = localSlot.get();
+        slot.key = key;
+        slot.state = operation;
+        int spins = 0;
+        while (true) {
+            int state = slot.state;
+            if (state >= TRUE) {
+                slot.state = EMPTY;
+                return state == TRUE;
+            }
+            if (!combining.get() && combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combining.set(false);
+                }
+            } else if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                spins = 0;
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Apply the published requests, holding the combiner flag
+     */
+    private void combine() {
+        int count = 0;
+        for (Slot slot = slots.get(); slot != null; slot = slot.next) {
+            int state = slot.state;
+            if (state != ADD && state != REMOVE)
+                continue;
+            if (count == batch.length) {
+                batch = Arrays.copyOf(batch, 2 * count);
+                pending = Arrays.copyOf(pending, 2 * count);
+            }
+            pending[count] = slot;
+            batch[count] = (long) slot.key << 32 | count;
+            count++;
+        }
+        Arrays.sort(batch, 0, count);
+
+        int cancelledPairs = 0;
+        int first = 0;
+        while (first < count) {
+            int key = (int) (batch[first] >> 32);
+            int end = first, adds = 0, removes = 0;
+            while (end < count && (int) (batch[end] >> 32) == key) {
+                if (pending[(int) batch[end]].state == ADD)
+                    adds++;
+                else
+                    removes++;
+                end++;
+            }
+            int pairs = Math.min(adds, removes);
+            // The unpaired requests are linearized before the pairs
+            boolean applied = adds > pairs ? set.fingerAdd(key, context)
+                    : removes > pairs && set.fingerRemove(key, context);
+            int pairedAdds = pairs, pairedRemoves = pairs;
+            boolean unpaired = true;
+            for (int i = first; i < end; i++) {
+                Slot slot = pending[(int) batch[i]];
+                boolean result;
+                if (slot.state == ADD ? pairedAdds-- > 0 : pairedRemoves-- > 0) {
+                    result = true;
+                } else {
+                    result = unpaired && applied;
+                    unpaired = false;
+                }
+                pending[(int) batch[i]] = null;
+                slot.state = result ? TRUE : FALSE;
+            }
+            cancelledPairs += pairs;
+            first = end;
+        }
+
+        synchronized (this) {
+            combines++;
+            requests += count;
+            cancelled += 2 * cancelledPairs;
+        }
+    }
+
+    /**
+     * Request of a thread: its key is written before its state is published
+     */
+    private static final class Slot {
+        volatile int state = EMPTY;
+        int key;
+        Slot next;
+    }
+}
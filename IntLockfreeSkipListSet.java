@@ -0,0 +1,1098 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Code from H&S, specialized for primitive int keys.
+ *
+ * Same algorithm as LockfreeConcurrentSkipListSet, but the key is stored
+ * inline in the node: no Integer is boxed and no hashCode() is called.
+ *
+ * The keys of the head and of the tail, Integer.MIN_VALUE and
+ * Integer.MAX_VALUE, can be in the set too: a search stops at the tail, and
+ * only matches a node that is not the tail. The head is never matched, as
+ * the searches start from its successors.
+ */
+
+public class IntLockfreeSkipListSet implements ConcurrentIntSet {
+    // Hard cap of the levels, enough for 4^16 elements with P = 0.75
+    static final int MAX_LEVEL = 16;
+
+    // probability for randomLevel method (probability of haaving a 0)
+    private static final double P = 0.75;
+
+    // One key out of STRIDE goes up one level in the sets built from sorted keys
+    private static final int STRIDE = (int) Math.round(1. / (1. - P));
+
+    // Number of keys under which a parallel build does not split anymore
+    private static final int BUILD_THRESHOLD = 1 << 16;
+
+    // Snapshot files: magic number ("SKIP"), version, and size of the header
+    // (magic, version, number of keys), followed by the keys as varint deltas
+    private static final int SNAPSHOT_MAGIC = 0x534B4950;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 16;
+
+    // Access to topLevel, to raise it
+    private static final VarHandle TOP_LEVEL;
+    static {
+        try {
+            TOP_LEVEL = MethodHandles.lookup().findVarHandle(IntLockfreeSkipListSet.class, "topLevel", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Max level of this set
+    final int maxLevel;
+
+    // Highest level that may be populated, where the searches start.
+    // Raised by one level at a time, so that it grows with the number of elements
+    private volatile int topLevel = 0;
+
+    // Head of the list, smaller than every key
+    final Node head;
+
+    // Tail of the list, greater than every key
+    final Node tail;
+
+    // Striped counter of the elements, updated at the linearization points, null if not counted
+    private final LongAdder count;
+
+    // Start each search from the last search path of the thread, for keys with locality
+    final boolean finger;
+
+    // Filter checked by contains before the search, null if none
+    private final CountingBloomFilter filter;
+
+    // Hash index from the keys to their node of the level 0, that answers contains for the members, null if none
+    private final NodeHashIndex index;
+
+    // Interferences between the threads in find, add and remove, counted if ContentionCounters.ENABLED
+    static final ContentionCounters CONTENTION = ContentionCounters.register("int");
+
+    // Search buffers of each thread, reused by add and remove
+    private final ThreadLocal<SearchContext> contexts = ThreadLocal.withInitial(this::newSearchContext);
+
+    // Generator of the levels, local to each thread
+    private static final LevelGenerator LEVELS = new LevelGenerator(P, MAX_LEVEL);
+
+    /**
+     * @return a level between 0 and MAX_LEVEL, following a geometric distribution of P
+     */
+    public static int randomLevel() {
+        return LEVELS.randomLevel();
+    }
+
+    public IntLockfreeSkipListSet() {
+        this(MAX_LEVEL, true);
+    }
+
+    /**
+     * @param maxLevel max level of the set, at most MAX_LEVEL
+     */
+    public IntLockfreeSkipListSet(int maxLevel) {
+        this(maxLevel, true);
+    }
+
+    /**
+     * @param maxLevel  max level of the set, at most MAX_LEVEL
+     * @param countSize count the elements for size(), false to avoid its cost
+     */
+    public IntLockfreeSkipListSet(int maxLevel, boolean countSize) {
+        this(maxLevel, countSize, false);
+    }
+
+    /**
+     * @param maxLevel  max level of the set, at most MAX_LEVEL
+     * @param countSize count the elements for size(), false to avoid its cost
+     * @param finger    start add, remove and contains from the last search path
+     *                  of the thread instead of the head
+     */
+    public IntLockfreeSkipListSet(int maxLevel, boolean countSize, boolean finger) {
+        this(maxLevel, countSize, finger, 0);
+    }
+
+    /**
+     * @param maxLevel       max level of the set, at most MAX_LEVEL
+     * @param countSize      count the elements for size(), false to avoid its cost
+     * @param finger         start add, remove and contains from the last search
+     *                       path of the thread instead of the head
+     * @param filterCapacity expected number of elements of a counting Bloom
+     *                       filter, that contains checks first, 0 for no filter
+     */
+    public IntLockfreeSkipListSet(int maxLevel, boolean countSize, boolean finger, int filterCapacity) {
+        this(maxLevel, countSize, finger, filterCapacity, 0);
+    }
+
+    /**
+     * @param maxLevel       max level of the set, at most MAX_LEVEL
+     * @param countSize      count the elements for size(), false to avoid its cost
+     * @param finger         start add, remove and contains from the last search
+     *                       path of the thread instead of the head
+     * @param filterCapacity expected number of elements of a counting Bloom
+     *                       filter, that contains checks first, 0 for no filter
+     * @param indexCapacity  expected number of distinct keys of a hash index,
+     *                       that answers contains for the members without search, 0 for no index
+     */
+    public IntLockfreeSkipListSet(int maxLevel, boolean countSize, boolean finger, int filterCapacity,
+            int indexCapacity) {
+        if (maxLevel < 0 || maxLevel > MAX_LEVEL)
+            throw new IllegalArgumentException("maxLevel must be between 0 and " + MAX_LEVEL);
+        this.maxLevel = maxLevel;
+        this.count = countSize ? new LongAdder() : null;
+        this.finger = finger;
+        this.filter = filterCapacity > 0 ? new CountingBloomFilter(filterCapacity) : null;
+        this.index = indexCapacity > 0 ? new NodeHashIndex(indexCapacity) : null;
+        head = new Node(Integer.MIN_VALUE, maxLevel);
+        tail = new Node(Integer.MAX_VALUE, maxLevel);
+        for (int i = 0; i < head.next.length; i++) {
+            head.setNext(i, tail);
+        }
+    }
+
+    /**
+     * Number of elements, read from the striped counter: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     *
+     * @throws UnsupportedOperationException if the size is not counted
+     */
+    @Override
+    public int size() {
+        if (count == null)
+            throw new UnsupportedOperationException("size is not counted by this set");
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * @return true if there is no unmarked node at the level 0, whether the size is counted or not
+     */
+    public boolean isEmpty() {
+        Node node = head.getReference(0);
+        while (node != tail && node.getNext(0) instanceof Marker)
+            node = node.getReference(0);
+        return node == tail;
+    }
+
+    /**
+     * Bound a random level to one more than the current top level, and raise
+     * the top level if needed
+     *
+     * @param level random level
+     * @return the level to use for the new node
+     */
+    private int boundLevel(int level) {
+        level = Math.min(level, maxLevel);
+        int top = topLevel;
+        if (level <= top)
+            return level;
+        level = top + 1;
+        // If it fails, another thread already raised it to at least level
+        TOP_LEVEL.compareAndSet(this, top, level);
+        return level;
+    }
+
+    /**
+     * @return new search buffers, that a thread can pass to add and remove
+     */
+    public SearchContext newSearchContext() {
+        return new SearchContext(maxLevel);
+    }
+
+    @Override
+    public boolean add(int x) {
+        return add(x, contexts.get());
+    }
+
+    /**
+     * Add using the given search buffers, that must not be shared between threads
+     */
+    boolean add(int x, SearchContext context) {
+        return add(x, context, finger);
+    }
+
+    /**
+     * @param finger start the first search from the last search path of the
+     *               context, the next ones (after an interference) from the head
+     */
+    private boolean add(int x, SearchContext context, boolean finger) {
+        // Top level, the maximum level where the node will be
+        int topLevel = boundLevel(randomLevel());
+        int bottomLevel = 0;
+
+        // Predecessors and successors of the node to add
+        Node[] preds = context.preds;
+        Node[] succs = context.succs;
+
+        // The finger only holds the predecessors up to its own top level
+        finger = finger && topLevel <= context.fingerTop;
+
+        // Counted by the filter before being visible, so that contains never misses it
+        if (filter != null)
+            filter.add(x);
+
+        while (true) {
+            boolean found = finger ? fingerFind(x, context) : find(x, context);
+            finger = false;
+            if (found) {
+                if (filter != null)
+                    filter.remove(x);
+                // Do not add the value as already present: end and return false
+                return false;
+            } else {
+                // The new node to add
+                Node newNode = new Node(x, topLevel);
+
+                // For all the levels, update the 'next' array of the node
+                for (int level = bottomLevel; level <= topLevel; level++) {
+                    Node succ = succs[level];
+                    newNode.setNext(level, succ);
+                }
+
+                // Lower (closer) predecessor and succesor
+                Node pred = preds[bottomLevel];
+                Node succ = succs[bottomLevel];
+
+                // Set the 'next' of the predecessor to the new node, if was still the found 'succesor'
+                // Otherwise restart process
+                if (!pred.casNext(bottomLevel, succ, newNode)) {
+                    if (ContentionCounters.ENABLED) {
+                        CONTENTION.failedBottomCas.increment();
+                        CONTENTION.refinds.increment();
+                    }
+                    continue;
+                }
+                if (count != null)
+                    count.increment();
+                // Indexed before add returns, and after being linked so that an indexed node is in the list
+                if (index != null)
+                    index.publish(x, newNode);
+                for (int level = bottomLevel + 1; level <= topLevel; level++) {
+                    // For each level, update the succesor of the previous node (until success of CAS)
+                    while (true) {
+                        pred = preds[level];
+                        succ = succs[level];
+                        if (pred.casNext(level, succ, newNode))
+                            break;
+                        if (ContentionCounters.ENABLED) {
+                            CONTENTION.upperLinkRetries.increment();
+                            CONTENTION.refinds.increment();
+                        }
+                        find(x, context);
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(int x) {
+        return remove(x, contexts.get());
+    }
+
+    /**
+     * Remove using the given search buffers, that must not be shared between threads
+     */
+    boolean remove(int x, SearchContext context) {
+        return remove(x, context, finger);
+    }
+
+    /**
+     * @param batch start the first search, and the search that unlinks the
+     *              marked node, from the last search path of the context
+     */
+    private boolean remove(int x, SearchContext context, boolean batch) {
+        int bottomLevel = 0;
+        Node[] succs = context.succs;
+        Node succ;
+        boolean finger = batch;
+        while (true) {
+            boolean found = finger ? fingerFind(x, context) : find(x, context);
+            finger = false;
+            if (!found) {
+                return false;
+            } else {
+                Node nodeToRemove = succs[bottomLevel];
+                for (int level = nodeToRemove.topLevel(); level >= bottomLevel + 1; level--) {
+                    succ = nodeToRemove.getNext(level);
+                    while (!(succ instanceof Marker)) {
+                        nodeToRemove.mark(level, succ);
+                        succ = nodeToRemove.getNext(level);
+                    }
+                }
+                succ = nodeToRemove.getNext(bottomLevel);
+                while (true) {
+                    boolean iMarkedIt = !(succ instanceof Marker) && nodeToRemove.mark(bottomLevel, succ);
+                    succ = succs[bottomLevel].getNext(bottomLevel);
+                    if (iMarkedIt) {
+                        if (count != null)
+                            count.decrement();
+                        if (filter != null)
+                            filter.remove(x);
+                        if (index != null)
+                            index.unpublish(x, nodeToRemove);
+                        // Unlink the node
+                        if (batch)
+                            fingerFind(x, context);
+                        else
+                            find(x, context);
+                        return true;
+                    } else if (succ instanceof Marker) {
+                        if (ContentionCounters.ENABLED)
+                            CONTENTION.lostMarkRaces.increment();
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add sorted keys. Each search starts from the search path of the previous
+     * key (the finger), at the lowest predecessor that is still valid, and
+     * only restarts from the head after an interference.
+     *
+     * @param sortedKeys keys in ascending order, so that each search starts close to its key
+     * @return number of keys added
+     */
+    int addAll(int[] sortedKeys) {
+        SearchContext context = contexts.get();
+        int added = 0;
+        for (int key : sortedKeys) {
+            if (add(key, context, true))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * Remove sorted keys, searching each one from the search path of the
+     * previous one, as addAll
+     *
+     * @param sortedKeys keys in ascending order, so that each search starts close to its key
+     * @return number of keys removed
+     */
+    int removeAll(int[] sortedKeys) {
+        SearchContext context = contexts.get();
+        int removed = 0;
+        for (int key : sortedKeys) {
+            if (remove(key, context, true))
+                removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Add searching from the search path of the previous operation of the
+     * context, for keys in ascending order (as addAll)
+     */
+    boolean fingerAdd(int x, SearchContext context) {
+        return add(x, context, true);
+    }
+
+    /**
+     * Remove searching from the search path of the previous operation of the
+     * context, for keys in ascending order (as removeAll)
+     */
+    boolean fingerRemove(int x, SearchContext context) {
+        return remove(x, context, true);
+    }
+
+    /**
+     * Search from the head, keeping the path in the context as the next finger
+     */
+    private boolean find(int key, SearchContext context) {
+        int top = topLevel;
+        context.fingerTop = top;
+        return find(key, context.preds, context.succs, head, top);
+    }
+
+    /**
+     * Search from the last search path of the context, at the level given by
+     * fingerLevel, or from the head if there is none
+     */
+    private boolean fingerFind(int key, SearchContext context) {
+        int level = fingerLevel(key, context);
+        if (level < 0)
+            return find(key, context);
+        return find(key, context.preds, context.succs, context.preds[level], level);
+    }
+
+    /**
+     * Level of the last search path where a search of the key can start: the
+     * lowest level whose predecessor is not marked, and such that the
+     * predecessors and successors of this level and of every level above
+     * still surround the key. The levels above can then be kept as they are.
+     *
+     * @return the level, -1 if the search must start from the head
+     */
+    private int fingerLevel(int key, SearchContext context) {
+        Node[] preds = context.preds;
+        Node[] succs = context.succs;
+        int top = context.fingerTop;
+        if (top < 0 || preds[top].key >= key || succs[top].key <= key)
+            return -1;
+        // Lowest level under which the key is not surrounded anymore
+        int lowest = top;
+        while (lowest > 0 && preds[lowest - 1].key < key && succs[lowest - 1].key > key)
+            lowest--;
+        for (int level = lowest; level <= top; level++) {
+            if (!(preds[level].getNext(level) instanceof Marker))
+                return level;
+        }
+        return -1;
+    }
+
+    boolean find(int key, Node[] preds, Node[] succs) {
+        return find(key, preds, succs, head, topLevel);
+    }
+
+    /**
+     * Search of the key from the start node, at the start level. After an
+     * interference, the search restarts from the head at the same level.
+     */
+    private boolean find(int key, Node[] preds, Node[] succs, Node start, int startLevel) {
+        int bottomLevel = 0;
+
+        boolean snip;
+
+        Node pred = null, curr = null, succ = null;
+        retry: while (true) {
+            pred = start;
+            for (int level = startLevel; level >= bottomLevel; level--) {
+                curr = pred.getReference(level);
+                while (true) {
+                    succ = curr.getNext(level);
+                    while (succ instanceof Marker) {
+                        snip = pred.casNext(level, curr, ((Marker) succ).succ);
+                        if (!snip) {
+                            if (ContentionCounters.ENABLED) {
+                                CONTENTION.failedSnips.increment();
+                                CONTENTION.refinds.increment();
+                            }
+                            start = head;
+                            continue retry;
+                        }
+                        if (ContentionCounters.ENABLED)
+                            CONTENTION.snips.increment();
+                        curr = pred.getReference(level);
+                        succ = curr.getNext(level);
+                    }
+                    if (curr.key < key) {
+                        pred = curr;
+                        curr = succ;
+                    } else {
+                        break;
+                    }
+                }
+                preds[level] = pred;
+                succs[level] = curr;
+            }
+            // The tail is never matched: Integer.MAX_VALUE is a valid key
+            return (curr != tail && curr.key == key);
+        }
+    }
+
+    @Override
+    public boolean contains(int v) {
+        // A key whose counters were at 0 was not in the set when they were read
+        if (filter != null && !filter.mightContain(v))
+            return false;
+        // A key not answered by the index may still be in the set: searched below
+        if (index != null && index.lookup(v) == NodeHashIndex.PRESENT)
+            return true;
+        if (finger)
+            return contains(v, contexts.get());
+        int bottomLevel = 0;
+        Node pred = head, curr = null, succ = null;
+        for (int level = topLevel; level >= bottomLevel; level--) {
+            curr = pred.getReference(level);
+            while (true) {
+                succ = curr.getNext(level);
+                // Skip the marked nodes: pred may be marked too, and never be updated
+                while (succ instanceof Marker) {
+                    curr = ((Marker) succ).succ;
+                    succ = curr.getNext(level);
+                }
+                if (curr.key < v) {
+                    pred = curr;
+                    curr = succ;
+                } else {
+                    break;
+                }
+            }
+        }
+        return (curr != tail && curr.key == v);
+    }
+
+    /**
+     * Same traversal as contains, starting from the last search path of the
+     * context, and keeping the new path in it
+     */
+    private boolean contains(int v, SearchContext context) {
+        Node[] preds = context.preds;
+        Node[] succs = context.succs;
+        int startLevel = fingerLevel(v, context);
+        Node pred;
+        if (startLevel < 0) {
+            startLevel = topLevel;
+            context.fingerTop = startLevel;
+            pred = head;
+        } else {
+            pred = preds[startLevel];
+        }
+        Node curr = null, succ = null;
+        for (int level = startLevel; level >= 0; level--) {
+            curr = pred.getReference(level);
+            while (true) {
+                succ = curr.getNext(level);
+                while (succ instanceof Marker) {
+                    curr = ((Marker) succ).succ;
+                    succ = curr.getNext(level);
+                }
+                if (curr.key < v) {
+                    pred = curr;
+                    curr = succ;
+                } else {
+                    break;
+                }
+            }
+            preds[level] = pred;
+            succs[level] = curr;
+        }
+        return (curr != tail && curr.key == v);
+    }
+
+    /**
+     * Weakly consistent ascending iterator of the keys from fromKey
+     * (inclusive) to toKey (exclusive): it returns the keys present during the
+     * whole iteration, and may or may not return the ones added or removed
+     * meanwhile. It jumps to the first key with a search, and then walks the
+     * level 0.
+     */
+    PrimitiveIterator.OfInt iterator(int fromKey, int toKey) {
+        return iterator(fromKey, toKey, false);
+    }
+
+    /**
+     * Same iterator, from fromKey (inclusive) to the last key, Integer.MAX_VALUE included
+     */
+    PrimitiveIterator.OfInt iterator(int fromKey) {
+        return iterator(fromKey, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * @param toEnd ignore toKey, and stop at the tail only
+     */
+    private PrimitiveIterator.OfInt iterator(int fromKey, int toKey, boolean toEnd) {
+        SearchContext context = contexts.get();
+        find(fromKey, context);
+        Node first = context.succs[0];
+        return new PrimitiveIterator.OfInt() {
+            private Node next = skip(first);
+
+            /**
+             * @return the first unmarked node from the given one, null after the range
+             */
+            private Node skip(Node node) {
+                while (node != tail && node.getNext(0) instanceof Marker)
+                    node = node.getReference(0);
+                if (node == tail || (!toEnd && node.key >= toKey))
+                    return null;
+                return node;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public int nextInt() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                int key = next.key;
+                next = skip(next.getReference(0));
+                return key;
+            }
+        };
+    }
+
+    /**
+     * Same traversal as contains, counting the visited nodes
+     *
+     * @param v key to search
+     * @return number of nodes visited to find the key
+     */
+    int searchPathLength(int v) {
+        int length = 0;
+        Node pred = head, curr = null;
+        for (int level = topLevel; level >= 0; level--) {
+            curr = pred.getReference(level);
+            length++;
+            while (curr.key < v) {
+                pred = curr;
+                curr = curr.getReference(level);
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the filter checked by contains, null if none
+     */
+    CountingBloomFilter filter() {
+        return filter;
+    }
+
+    /**
+     * @return the hash index checked by contains, null if none
+     */
+    NodeHashIndex index() {
+        return index;
+    }
+
+    /**
+     * @return the highest level that may be populated
+     */
+    int topLevel() {
+        return topLevel;
+    }
+
+    public String stringify() {
+        StringBuilder result = new StringBuilder("IntLockfreeSkipListSet {");
+
+        int bottomLevel = 0;
+        Node pred = head, curr = null;
+
+        for (int level = topLevel; level >= bottomLevel; level--) {
+            result.append("\n    ").append(level).append(": ");
+            curr = pred.getReference(level);
+            while (curr != tail) {
+                result.append(curr.key).append(' ');
+                curr = curr.getReference(level);
+            }
+        }
+
+        result.append("\n}");
+
+        return result.toString();
+    }
+
+    /**
+     * Build a set from sorted keys, in one linear pass from the bottom
+     *
+     * @param sortedKeys keys in ascending order, duplicates are ignored
+     * @return the set, to publish safely as any object built by a single thread
+     */
+    public static IntLockfreeSkipListSet fromSorted(int[] sortedKeys) {
+        return fromSorted(sortedKeys, false);
+    }
+
+    /**
+     * Build a set from sorted keys. The level of a key only depends on its
+     * index: one key out of STRIDE goes up one level, which gives the
+     * same proportions as the random levels.
+     *
+     * @param sortedKeys keys in ascending order, duplicates are ignored
+     * @param parallel   build segments of the keys with fork/join, and then
+     *                   stitch them together
+     * @return the set, to publish safely as any object built by a single thread
+     */
+    public static IntLockfreeSkipListSet fromSorted(int[] sortedKeys, boolean parallel) {
+        IntLockfreeSkipListSet set = new IntLockfreeSkipListSet();
+        Segment segment;
+        if (parallel) {
+            segment = ForkJoinPool.commonPool().invoke(new BuildTask(set.maxLevel, sortedKeys, 0, sortedKeys.length));
+        } else {
+            segment = new Segment(set.maxLevel, 0, false, 0);
+            for (int key : sortedKeys)
+                segment.append(key);
+        }
+        set.attach(segment);
+        return set;
+    }
+
+    /**
+     * Build a set from sorted keys, in one linear pass from the bottom
+     *
+     * @param sortedKeys keys in ascending order, duplicates are ignored
+     * @return the set, to publish safely as any object built by a single thread
+     */
+    public static IntLockfreeSkipListSet fromSorted(PrimitiveIterator.OfInt sortedKeys) {
+        IntLockfreeSkipListSet set = new IntLockfreeSkipListSet();
+        Segment segment = new Segment(set.maxLevel, 0, false, 0);
+        while (sortedKeys.hasNext())
+            segment.append(sortedKeys.nextInt());
+        set.attach(segment);
+        return set;
+    }
+
+    /**
+     * Write the keys of the level 0 to a snapshot file, each one as the varint
+     * of its difference with the previous one. The walk is weakly consistent:
+     * a key added or removed during the snapshot may be missed. The file is
+     * forced to the disk before returning.
+     *
+     * @param path file to write, replaced if it exists
+     * @return number of keys written
+     */
+    public long snapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            // Number of keys written once known
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(0);
+
+            long written = 0;
+            int previous = Integer.MIN_VALUE;
+            for (Node node = head.getReference(0); node != tail; node = node.getReference(0)) {
+                if (node.getNext(0) instanceof Marker)
+                    continue;
+                if (buffer.remaining() < 5)
+                    flush(channel, buffer);
+                // Unsigned difference, from Integer.MIN_VALUE for the first key
+                int delta = node.key - previous;
+                while ((delta & ~0x7F) != 0) {
+                    buffer.put((byte) (delta & 0x7F | 0x80));
+                    delta >>>= 7;
+                }
+                buffer.put((byte) delta);
+                previous = node.key;
+                written++;
+            }
+            flush(channel, buffer);
+
+            buffer.putLong(written).flip();
+            channel.write(buffer, SNAPSHOT_HEADER - 8);
+            channel.force(true);
+            return written;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Build a set from a snapshot file, mapped in memory, in one linear pass
+     *
+     * @param path file written by snapshot
+     * @return the set, to publish safely as any object built by a single thread
+     * @throws IOException if the file can not be read, or is not a complete
+     *                     and valid snapshot (key count, varints, ascending keys)
+     */
+    public static IntLockfreeSkipListSet load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < SNAPSHOT_HEADER || buffer.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException(path + " is not a snapshot");
+            int version = buffer.getInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            long keyCount = buffer.getLong();
+            // A key takes at least one byte
+            if (keyCount < 0 || keyCount > buffer.remaining())
+                throw new IOException("Corrupt snapshot " + path + ": " + keyCount + " keys in "
+                        + buffer.remaining() + " bytes");
+
+            // Errors of the keys, thrown through the iterator as unchecked
+            PrimitiveIterator.OfInt keys = new PrimitiveIterator.OfInt() {
+                long read = 0;
+                int previous = Integer.MIN_VALUE;
+
+                @Override
+                public boolean hasNext() {
+                    return read < keyCount;
+                }
+
+                @Override
+                public int nextInt() {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        // 5 bytes at most for 32 bits
+                        if (shift > 28)
+                            throw corrupt("varint longer than 5 bytes");
+                        b = buffer.get();
+                        delta |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    // Strictly ascending keys, the first one from Integer.MIN_VALUE
+                    if (read > 0 && delta == 0)
+                        throw corrupt("key " + previous + " repeated");
+                    long key = previous + delta;
+                    if (key > Integer.MAX_VALUE)
+                        throw corrupt("key " + key + " out of the int range");
+                    read++;
+                    previous = (int) key;
+                    return previous;
+                }
+
+                private UncheckedIOException corrupt(String reason) {
+                    return new UncheckedIOException(
+                            new IOException("Corrupt snapshot " + path + " at key " + read + ": " + reason));
+                }
+            };
+            IntLockfreeSkipListSet set;
+            try {
+                set = fromSorted(keys);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated snapshot " + path, e);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (buffer.hasRemaining())
+                throw new IOException("Corrupt snapshot " + path + ": " + buffer.remaining() + " bytes after the keys");
+            return set;
+        }
+    }
+
+    /**
+     * Link a built segment between the head and the tail of this empty set
+     */
+    private void attach(Segment segment) {
+        for (int level = 0; level <= maxLevel; level++) {
+            if (segment.first[level] != null) {
+                head.setNext(level, segment.first[level]);
+                segment.last[level].setNext(level, tail);
+            }
+        }
+        topLevel = segment.topLevel;
+        if (count != null)
+            count.add(segment.count);
+    }
+
+    /**
+     * Chain of nodes built from sorted keys, not linked to a set yet
+     */
+    private static final class Segment {
+        // First and last node of each level, null if the level is empty
+        final Node[] first, last;
+        final int maxLevel;
+
+        // Index of the next key in the whole input, that gives its level
+        long index;
+
+        // Last key seen, to ignore duplicates and check the order
+        int previous;
+        boolean hasPrevious;
+
+        int topLevel = 0;
+        long count = 0;
+
+        /**
+         * @param maxLevel    max level of the set
+         * @param index       index of the first key in the whole input
+         * @param hasPrevious whether there is a key before this segment
+         * @param previous    the key before this segment
+         */
+        Segment(int maxLevel, long index, boolean hasPrevious, int previous) {
+            this.maxLevel = maxLevel;
+            this.first = new Node[maxLevel + 1];
+            this.last = new Node[maxLevel + 1];
+            this.index = index;
+            this.hasPrevious = hasPrevious;
+            this.previous = previous;
+        }
+
+        void append(int key) {
+            long keyIndex = index++;
+            if (hasPrevious) {
+                if (key < previous)
+                    throw new IllegalArgumentException("keys are not sorted: " + key + " after " + previous);
+                if (key == previous)
+                    return;
+            }
+            previous = key;
+            hasPrevious = true;
+
+            // Level from the index: number of times index + 1 can be divided by STRIDE
+            int height = 0;
+            for (long n = keyIndex + 1; n % STRIDE == 0 && height < maxLevel; n /= STRIDE)
+                height++;
+
+            Node node = new Node(key, height);
+            for (int level = 0; level <= height; level++) {
+                if (last[level] == null)
+                    first[level] = node;
+                else
+                    last[level].setNext(level, node);
+                last[level] = node;
+            }
+            topLevel = Math.max(topLevel, height);
+            count++;
+        }
+
+        /**
+         * Append the following segment to this one
+         */
+        Segment stitch(Segment next) {
+            for (int level = 0; level <= maxLevel; level++) {
+                if (next.first[level] == null)
+                    continue;
+                if (last[level] == null)
+                    first[level] = next.first[level];
+                else
+                    last[level].setNext(level, next.first[level]);
+                last[level] = next.last[level];
+            }
+            topLevel = Math.max(topLevel, next.topLevel);
+            count += next.count;
+            return this;
+        }
+    }
+
+    /**
+     * Build of a segment of sorted keys, split in two halves built in parallel
+     */
+    private static final class BuildTask extends RecursiveTask<Segment> {
+        private static final long serialVersionUID = 1L;
+
+        final int maxLevel;
+        final int[] keys;
+        final int from, to;
+
+        BuildTask(int maxLevel, int[] keys, int from, int to) {
+            this.maxLevel = maxLevel;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Segment compute() {
+            if (to - from <= BUILD_THRESHOLD) {
+                Segment segment = new Segment(maxLevel, from, from > 0, from > 0 ? keys[from - 1] : 0);
+                for (int i = from; i < to; i++)
+                    segment.append(keys[i]);
+                return segment;
+            }
+            int middle = (from + to) >>> 1;
+            BuildTask right = new BuildTask(maxLevel, keys, middle, to);
+            right.fork();
+            Segment left = new BuildTask(maxLevel, keys, from, middle).compute();
+            return left.stitch(right.join());
+        }
+    }
+
+    /**
+     * Predecessors and successors found by a search, reused by the operations
+     * of a thread so that add and remove do not allocate them
+     */
+    public static final class SearchContext {
+        final Node[] preds;
+        final Node[] succs;
+
+        // Highest level of the last search path, that can be used as a finger, -1 for none
+        int fingerTop = -1;
+
+        SearchContext(int maxLevel) {
+            preds = new Node[maxLevel + 1];
+            succs = new Node[maxLevel + 1];
+        }
+    }
+
+    /**
+     * Node of the ListSet, holding the int key inline
+     *
+     * The next nodes are kept in a single array, updated through a VarHandle.
+     * A marked reference is stored as a Marker wrapping the successor.
+     */
+    public static class Node {
+        // Access to the cells of the 'next' arrays, with volatile semantics
+        private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+
+        // Key of the node, also the stored value
+        final int key;
+
+        // Next node at each level, or a Marker if the level is marked (the top level is next.length - 1)
+        final Node[] next;
+
+        /**
+         * constructor for ordinary and sentinel nodes
+         *
+         * @param x      key to store
+         * @param height top level of the node
+         */
+        public Node(int x, int height) {
+            key = x;
+            next = new Node[height + 1];
+        }
+
+        // constructor for markers, that do not have any level
+        private Node() {
+            key = 0;
+            next = null;
+        }
+
+        int topLevel() {
+            return next.length - 1;
+        }
+
+        /**
+         * @return the successor at this level, or a Marker if the level is marked
+         */
+        Node getNext(int level) {
+            return (Node) NEXT.getVolatile(next, level);
+        }
+
+        /**
+         * @return the successor at this level, whether the level is marked or not
+         */
+        Node getReference(int level) {
+            Node succ = (Node) NEXT.getVolatile(next, level);
+            return succ instanceof Marker ? ((Marker) succ).succ : succ;
+        }
+
+        /**
+         * Set an unmarked successor, before the node is published
+         */
+        void setNext(int level, Node succ) {
+            next[level] = succ;
+        }
+
+        /**
+         * Replace an unmarked successor by another one, fails if the level is marked
+         */
+        boolean casNext(int level, Node expected, Node succ) {
+            return NEXT.compareAndSet(next, level, expected, succ);
+        }
+
+        /**
+         * Mark the level, if the successor is still the expected one
+         */
+        boolean mark(int level, Node succ) {
+            return NEXT.compareAndSet(next, level, succ, new Marker(succ));
+        }
+    }
+
+    /**
+     * Marked reference to a successor, that can not be changed anymore
+     */
+    static final class Marker extends Node {
+        final Node succ;
+
+        Marker(Node succ) {
+            this.succ = succ;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Histogram of latencies in nanoseconds, with log-linear buckets: exact below
+ * 64ns, then 32 linear buckets by power of two (3% of precision).
+ *
+ * Its memory is fixed (an array of counts, allocated once), and record() does
+ * not allocate nor synchronize: each thread records in its own histograms, that
+ * are merged with add() once the threads are joined.
+ */
+public class LatencyHistogram {
+    // Linear buckets by power of two: 2^SUB_BITS
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Enough buckets for any positive long
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * @param nanos latency of an operation, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts[bucket(nanos)]++;
+        count++;
+        if (nanos > max)
+            max = nanos;
+    }
+
+    /**
+     * Add the counts of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return number of recorded latencies
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return highest recorded latency
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest latency of the bucket of the percentile (at most the
+     *         highest recorded latency), 0 if the histogram is empty
+     */
+    public long percentile(double percentile) {
+        if (count == 0)
+            return 0;
+        // Rank of the latency, from 1 to count
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Values below 2 * SUB_COUNT have their own bucket. Above, a value whose
+     * highest bit is at position SUB_BITS + shift is in the bucket of its
+     * SUB_BITS + 1 highest bits, the first of them always set
+     */
+    private static int bucket(long value) {
+        if (value < 2 * SUB_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * @return highest value of a bucket
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_COUNT)
+            return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        long sub = bucket % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,305 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lazy skiplist from H&S (Herlihy, Lev, Luchangco and Shavit): add and
+ * remove lock the predecessors of the node, validate that they are unmarked
+ * and still linked to the expected successors, and then link or unlink the
+ * node. A node is marked (logically removed) before being unlinked, and is
+ * only in the set once fullyLinked.
+ *
+ * contains takes no lock and never retries: it is wait-free.
+ *
+ * Same keys (hashCode), levels and dynamic top level as
+ * LockfreeConcurrentSkipListSet, to compare both algorithms.
+ */
+public class LazySkipListSet<T> {
+    static final int MAX_LEVEL = LockfreeConcurrentSkipListSet.MAX_LEVEL;
+
+    // Access to topLevel, to raise it
+    private static final VarHandle TOP_LEVEL;
+    static {
+        try {
+            TOP_LEVEL = MethodHandles.lookup().findVarHandle(LazySkipListSet.class, "topLevel", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Highest level that may be populated, where the searches start.
+    // Raised by one level at a time, so that it grows with the number of elements
+    private volatile int topLevel = 0;
+
+    final Node<T> head = new Node<T>(Integer.MIN_VALUE);
+    final Node<T> tail = new Node<T>(Integer.MAX_VALUE);
+
+    // Striped counter of the elements, updated at the linearization points, null if not counted
+    private final LongAdder count;
+
+    // Search buffers of each thread, reused by add and remove
+    private final ThreadLocal<SearchContext<T>> contexts = ThreadLocal.withInitial(SearchContext::new);
+
+    public LazySkipListSet() {
+        this(true);
+    }
+
+    /**
+     * @param countSize count the elements for size(), false to avoid its cost
+     */
+    public LazySkipListSet(boolean countSize) {
+        this.count = countSize ? new LongAdder() : null;
+        for (int i = 0; i < head.next.length; i++) {
+            head.setNext(i, tail);
+        }
+    }
+
+    /**
+     * Number of elements, read from the striped counter: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     *
+     * @throws UnsupportedOperationException if the size is not counted
+     */
+    public int size() {
+        if (count == null)
+            throw new UnsupportedOperationException("size is not counted by this set");
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * Bound a random level to one more than the current top level, and raise
+     * the top level if needed
+     */
+    private int boundLevel(int level) {
+        int top = topLevel;
+        if (level <= top)
+            return level;
+        level = top + 1;
+        // If it fails, another thread already raised it to at least level
+        TOP_LEVEL.compareAndSet(this, top, level);
+        return level;
+    }
+
+    /**
+     * Search without lock
+     *
+     * @return the highest level where a node of the key was found, -1 if none
+     */
+    private int find(int key, Node<T>[] preds, Node<T>[] succs) {
+        int found = -1;
+        Node<T> pred = head;
+        for (int level = topLevel; level >= 0; level--) {
+            Node<T> curr = pred.getNext(level);
+            while (curr.key < key) {
+                pred = curr;
+                curr = pred.getNext(level);
+            }
+            if (found == -1 && curr.key == key)
+                found = level;
+            preds[level] = pred;
+            succs[level] = curr;
+        }
+        return found;
+    }
+
+    boolean add(T x) {
+        int key = x.hashCode();
+        int topLevel = boundLevel(LockfreeConcurrentSkipListSet.randomLevel());
+        SearchContext<T> context = contexts.get();
+        Node<T>[] preds = context.preds;
+        Node<T>[] succs = context.succs;
+        while (true) {
+            int found = find(key, preds, succs);
+            if (found != -1) {
+                Node<T> nodeFound = succs[found];
+                if (!nodeFound.marked) {
+                    // Present once its concurrent add links it
+                    while (!nodeFound.fullyLinked)
+                        Thread.onSpinWait();
+                    return false;
+                }
+                // Being removed: retry once it is unlinked
+                continue;
+            }
+            int highestLocked = -1;
+            try {
+                boolean valid = true;
+                for (int level = 0; valid && level <= topLevel; level++) {
+                    Node<T> pred = preds[level];
+                    Node<T> succ = succs[level];
+                    pred.lock.lock();
+                    highestLocked = level;
+                    valid = !pred.marked && !succ.marked && pred.getNext(level) == succ;
+                }
+                if (!valid)
+                    continue;
+                Node<T> newNode = new Node<T>(x, topLevel);
+                for (int level = 0; level <= topLevel; level++)
+                    newNode.setNext(level, succs[level]);
+                for (int level = 0; level <= topLevel; level++)
+                    preds[level].publishNext(level, newNode);
+                // Linearization point
+                newNode.fullyLinked = true;
+                if (count != null)
+                    count.increment();
+                return true;
+            } finally {
+                for (int level = 0; level <= highestLocked; level++)
+                    preds[level].lock.unlock();
+            }
+        }
+    }
+
+    boolean remove(T x) {
+        int key = x.hashCode();
+        SearchContext<T> context = contexts.get();
+        Node<T>[] preds = context.preds;
+        Node<T>[] succs = context.succs;
+        Node<T> victim = null;
+        boolean isMarked = false;
+        int topLevel = -1;
+        while (true) {
+            int found = find(key, preds, succs);
+            if (found != -1)
+                victim = succs[found];
+            if (isMarked || (found != -1 && victim.fullyLinked && victim.topLevel() == found && !victim.marked)) {
+                if (!isMarked) {
+                    topLevel = victim.topLevel();
+                    victim.lock.lock();
+                    if (victim.marked) {
+                        victim.lock.unlock();
+                        return false;
+                    }
+                    // Linearization point
+                    victim.marked = true;
+                    isMarked = true;
+                    if (count != null)
+                        count.decrement();
+                }
+                int highestLocked = -1;
+                try {
+                    boolean valid = true;
+                    for (int level = 0; valid && level <= topLevel; level++) {
+                        Node<T> pred = preds[level];
+                        pred.lock.lock();
+                        highestLocked = level;
+                        valid = !pred.marked && pred.getNext(level) == victim;
+                    }
+                    if (!valid)
+                        continue;
+                    for (int level = topLevel; level >= 0; level--)
+                        preds[level].publishNext(level, victim.getNext(level));
+                    victim.lock.unlock();
+                    return true;
+                } finally {
+                    for (int level = 0; level <= highestLocked; level++)
+                        preds[level].lock.unlock();
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Wait-free: one traversal, without lock nor retry
+     */
+    boolean contains(T x) {
+        int key = x.hashCode();
+        Node<T> pred = head;
+        for (int level = topLevel; level >= 0; level--) {
+            Node<T> curr = pred.getNext(level);
+            while (curr.key < key) {
+                pred = curr;
+                curr = pred.getNext(level);
+            }
+            if (curr.key == key)
+                return curr.fullyLinked && !curr.marked;
+        }
+        return false;
+    }
+
+    /**
+     * Predecessors and successors found by a search, reused by the operations
+     * of a thread so that add and remove do not allocate them
+     */
+    private static final class SearchContext<T> {
+        final Node<T>[] preds;
+        final Node<T>[] succs;
+
+        SearchContext() {
+            preds = Node.newArray(MAX_LEVEL + 1);
+            succs = Node.newArray(MAX_LEVEL + 1);
+        }
+    }
+
+    /**
+     * Node of the set, with its lock and its flags. The next nodes are read
+     * without lock, and written holding the lock of the node.
+     */
+    static final class Node<T> {
+        // Access to the cells of the 'next' arrays, with volatile semantics
+        private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+
+        final T value;
+        final int key;
+        final Node<T>[] next;
+        final ReentrantLock lock = new ReentrantLock();
+
+        // Logically removed
+        volatile boolean marked = false;
+
+        // Linked at all its levels: in the set, unless marked
+        volatile boolean fullyLinked = false;
+
+        // constructor for sentinel nodes
+        Node(int key) {
+            this.value = null;
+            this.key = key;
+            this.next = newArray(MAX_LEVEL + 1);
+            this.fullyLinked = true;
+        }
+
+        /**
+         * @param x      value to store
+         * @param height top level of the node
+         */
+        Node(T x, int height) {
+            this.value = x;
+            this.key = x.hashCode();
+            this.next = newArray(height + 1);
+        }
+
+        /**
+         * Array of nodes: created with a wildcard, the only unchecked cast
+         */
+        @SuppressWarnings("unchecked")
+        static <T> Node<T>[] newArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+
+        int topLevel() {
+            return next.length - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<T> getNext(int level) {
+            return (Node<T>) NEXT.getVolatile(next, level);
+        }
+
+        /**
+         * Set a successor, before the node is published
+         */
+        void setNext(int level, Node<T> succ) {
+            next[level] = succ;
+        }
+
+        /**
+         * Set a successor of a published node, holding its lock
+         */
+        void publishNext(int level, Node<T> succ) {
+            NEXT.setVolatile(next, level, succ);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generator of random levels for the skiplists, following a geometric
+ * distribution: a level is 0 with a probability P, and each level above is
+ * reached with a probability 1 - P.
+ *
+ * Uses the random generator of the current thread: no shared state, no
+ * contention between threads and no allocation.
+ */
+public class LevelGenerator {
+    // Probability of having a 0
+    final double p;
+
+    // Max level to generate
+    final int maxLevel;
+
+    // Number of random bits by level, when 1 - P is a power of 1/2, 0 otherwise
+    private final int bitsPerLevel;
+
+    // 1 / log(1 - P), for the other values of P
+    private final double inverseLogQ;
+
+    /**
+     * @param p        probability of having a 0, strictly between 0 and 1
+     * @param maxLevel max level to generate
+     */
+    public LevelGenerator(double p, int maxLevel) {
+        if (!(p > 0 && p < 1))
+            throw new IllegalArgumentException("p must be between 0 and 1");
+        this.p = p;
+        this.maxLevel = maxLevel;
+
+        // 1 - P = 2^-bits: a level is reached when 'bits' more random bits are zeros
+        int bits = 0;
+        for (int b = 1; b < 32; b++) {
+            if (1. - p == Math.scalb(1., -b)) {
+                bits = b;
+                break;
+            }
+        }
+        this.bitsPerLevel = bits;
+        this.inverseLogQ = 1. / Math.log(1. - p);
+    }
+
+    /**
+     * @return a level between 0 and maxLevel
+     */
+    public int randomLevel() {
+        int lvl;
+        if (bitsPerLevel > 0) {
+            // Each group of bitsPerLevel leading zeros is one more level
+            lvl = Long.numberOfLeadingZeros(ThreadLocalRandom.current().nextLong()) / bitsPerLevel;
+        } else {
+            lvl = (int) (Math.log(1. - ThreadLocalRandom.current().nextDouble()) * inverseLogQ);
+        }
+        return Math.min(lvl, maxLevel);
+    }
+}
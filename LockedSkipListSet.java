@@ -22,17 +22,14 @@ public class LockedSkipListSet<T> {
 
     ConcurrentLinkedQueue<Operation<T>> operations = new ConcurrentLinkedQueue<>();
 
+    // Generator of the levels, local to each thread
+    private static final LevelGenerator LEVELS = new LevelGenerator(P, MAX_LEVEL);
+
     /**
-     * Implementation found at
-     * https://stackoverflow.com/questions/12067045/random-level-function-in-skip-list
-     * Should validate "The randomLevel() method is designed based on empirical
-     * measurements to maintain the skiplist property."
-     * 
-     * @return a level between 0 and MAX_LEVEL
+     * @return a level between 0 and MAX_LEVEL, following a geometric distribution of P
      */
     public static int randomLevel() {
-        int lvl = (int) (Math.log(1. - Math.random()) / Math.log(1. - P));
-        return Math.min(lvl, MAX_LEVEL);
+        return LEVELS.randomLevel();
     }
 
     public LockedSkipListSet() {
@@ -0,0 +1,546 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Ordered map from key to value, built on the same H&S algorithm as
+ * LockfreeConcurrentSkipListSet.
+ *
+ * The keys are ordered by a Comparator, or by their natural ordering, and
+ * never by their hashCode(): colliding hashes are different keys.
+ * Values are updated in place with a CAS. A null value means that the entry
+ * is logically removed: the CAS to null is the linearization point of a
+ * removal, the node is then marked and snipped as in the set.
+ */
+
+public class LockfreeConcurrentSkipListMap<K, V> {
+    // Max level: enough for 4^16 elements with P = 0.75
+    static final int MAX_LEVEL = 16;
+
+    // probability for randomLevel method (probability of haaving a 0)
+    private static final double P = 0.75;
+
+    // Access to topLevel, to raise it
+    private static final VarHandle TOP_LEVEL;
+    static {
+        try {
+            TOP_LEVEL = MethodHandles.lookup().findVarHandle(LockfreeConcurrentSkipListMap.class, "topLevel",
+                    int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Generator of the levels, local to each thread
+    private static final LevelGenerator LEVELS = new LevelGenerator(P, MAX_LEVEL);
+
+    // Order of the keys, null for their natural ordering
+    private final Comparator<? super K> comparator;
+
+    // Highest level that may be populated, where the searches start
+    private volatile int topLevel = 0;
+
+    // Head of the list, before every key
+    final Node<K, V> head = new Node<K, V>(null, null, MAX_LEVEL);
+
+    // Tail of the list, after every key
+    final Node<K, V> tail = new Node<K, V>(null, null, MAX_LEVEL);
+
+    // Striped counter of the entries, updated at the linearization points, null if not counted
+    private final LongAdder count;
+
+    // Search buffers of each thread
+    private final ThreadLocal<SearchContext<K, V>> contexts = ThreadLocal.withInitial(SearchContext::new);
+
+    /**
+     * Map ordered by the natural ordering of the keys, that must be Comparable
+     */
+    public LockfreeConcurrentSkipListMap() {
+        this(null);
+    }
+
+    /**
+     * @param comparator order of the keys, null for their natural ordering
+     */
+    public LockfreeConcurrentSkipListMap(Comparator<? super K> comparator) {
+        this(comparator, true);
+    }
+
+    /**
+     * @param comparator order of the keys, null for their natural ordering
+     * @param countSize  count the entries for size(), false to avoid its cost
+     */
+    public LockfreeConcurrentSkipListMap(Comparator<? super K> comparator, boolean countSize) {
+        this.comparator = comparator;
+        this.count = countSize ? new LongAdder() : null;
+        for (int i = 0; i < head.next.length; i++) {
+            head.setNext(i, tail);
+        }
+    }
+
+    /**
+     * @return a level between 0 and MAX_LEVEL, following a geometric distribution of P
+     */
+    public static int randomLevel() {
+        return LEVELS.randomLevel();
+    }
+
+    /**
+     * Bound a random level to one more than the current top level, and raise
+     * the top level if needed
+     */
+    private int boundLevel(int level) {
+        int top = topLevel;
+        if (level <= top)
+            return level;
+        level = top + 1;
+        // If it fails, another thread already raised it to at least level
+        TOP_LEVEL.compareAndSet(this, top, level);
+        return level;
+    }
+
+    /**
+     * Compare the key of a node with a key, the tail being after every key
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(Node<K, V> node, K key) {
+        if (node == tail)
+            return 1;
+        if (comparator != null)
+            return comparator.compare(node.key, key);
+        return ((Comparable<? super K>) node.key).compareTo(key);
+    }
+
+    /**
+     * Number of entries, read from the striped counter: exact when there is no
+     * concurrent update, approximate otherwise
+     *
+     * @throws UnsupportedOperationException if the size is not counted
+     */
+    public int size() {
+        if (count == null)
+            throw new UnsupportedOperationException("size is not counted by this map");
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * @return true if there is no entry with a value, whether the size is counted or not
+     */
+    public boolean isEmpty() {
+        Node<K, V> node = head.getReference(0);
+        while (node != tail && node.value == null)
+            node = node.getReference(0);
+        return node == tail;
+    }
+
+    /**
+     * Logical removal of an entry, with its value to null
+     */
+    private boolean removeValue(Node<K, V> node, V expected) {
+        if (!node.casValue(expected, null))
+            return false;
+        if (count != null)
+            count.decrement();
+        return true;
+    }
+
+    /**
+     * @return the value associated to the key, or null if none
+     */
+    V get(K key) {
+        Node<K, V> node = findNode(key);
+        return node == null ? null : node.value;
+    }
+
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associate the value to the key, replacing the previous one
+     *
+     * @return the previous value, or null if none
+     */
+    V put(K key, V value) {
+        return doPut(key, value, false);
+    }
+
+    /**
+     * Associate the value to the key, if it has no value yet
+     *
+     * @return the current value, or null if the value was added
+     */
+    V putIfAbsent(K key, V value) {
+        return doPut(key, value, true);
+    }
+
+    /**
+     * Replace the value of the key, only if it has one
+     *
+     * @return the previous value, or null if none (nothing is replaced)
+     */
+    V replace(K key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        while (true) {
+            Node<K, V> node = findNode(key);
+            if (node == null)
+                return null;
+            V v = node.value;
+            if (v == null)
+                return null;
+            if (node.casValue(v, value))
+                return v;
+        }
+    }
+
+    /**
+     * Replace the value of the key, only if it is the expected one
+     */
+    boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        while (true) {
+            Node<K, V> node = findNode(key);
+            if (node == null)
+                return false;
+            V v = node.value;
+            if (v == null || !oldValue.equals(v))
+                return false;
+            if (node.casValue(v, newValue))
+                return true;
+        }
+    }
+
+    /**
+     * Compute a new value for the key, if it has one. The function may be
+     * called several times under contention, and removes the key when it
+     * returns null.
+     *
+     * @return the new value, or null if none
+     */
+    V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        SearchContext<K, V> context = contexts.get();
+        while (true) {
+            if (!find(key, context.preds, context.succs))
+                return null;
+            Node<K, V> node = context.succs[0];
+            V v = node.value;
+            if (v == null)
+                return null;
+            V newValue = remappingFunction.apply(key, v);
+            if (newValue == null) {
+                if (removeValue(node, v)) {
+                    unlink(node, context);
+                    return null;
+                }
+            } else if (node.casValue(v, newValue)) {
+                return newValue;
+            }
+        }
+    }
+
+    /**
+     * Remove the key
+     *
+     * @return the removed value, or null if none
+     */
+    V remove(K key) {
+        SearchContext<K, V> context = contexts.get();
+        while (true) {
+            if (!find(key, context.preds, context.succs))
+                return null;
+            Node<K, V> node = context.succs[0];
+            V v = node.value;
+            if (v == null)
+                return null;
+            if (removeValue(node, v)) {
+                unlink(node, context);
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Remove the key, only if its value is the expected one
+     */
+    boolean remove(K key, V value) {
+        if (value == null)
+            return false;
+        SearchContext<K, V> context = contexts.get();
+        while (true) {
+            if (!find(key, context.preds, context.succs))
+                return false;
+            Node<K, V> node = context.succs[0];
+            V v = node.value;
+            if (v == null || !value.equals(v))
+                return false;
+            if (removeValue(node, v)) {
+                unlink(node, context);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Put the value, replacing the previous one unless onlyIfAbsent
+     *
+     * @return the previous value, or null if none
+     */
+    private V doPut(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+
+        int topLevel = boundLevel(randomLevel());
+        int bottomLevel = 0;
+
+        SearchContext<K, V> context = contexts.get();
+        Node<K, V>[] preds = context.preds;
+        Node<K, V>[] succs = context.succs;
+
+        while (true) {
+            if (find(key, preds, succs)) {
+                Node<K, V> node = succs[bottomLevel];
+                V v = node.value;
+                if (v == null) {
+                    // Being removed: finish the removal before inserting a new node
+                    unlink(node, context);
+                    continue;
+                }
+                if (onlyIfAbsent || node.casValue(v, value))
+                    return v;
+                continue;
+            }
+
+            // The new node to add
+            Node<K, V> newNode = new Node<K, V>(key, value, topLevel);
+            for (int level = bottomLevel; level <= topLevel; level++) {
+                newNode.setNext(level, succs[level]);
+            }
+
+            // Linearization point: the node is in the bottom level
+            if (!preds[bottomLevel].casNext(bottomLevel, succs[bottomLevel], newNode)) {
+                continue;
+            }
+            if (count != null)
+                count.increment();
+            for (int level = bottomLevel + 1; level <= topLevel; level++) {
+                while (true) {
+                    Node<K, V> pred = preds[level];
+                    Node<K, V> succ = succs[level];
+                    // Point to the current successor, unless the node is already being removed
+                    Node<K, V> next = newNode.getNext(level);
+                    if (next instanceof Marker || (next != succ && !newNode.casNext(level, next, succ)))
+                        return null;
+                    if (pred.casNext(level, succ, newNode))
+                        break;
+                    find(key, preds, succs);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mark every level of a logically removed node, and snip it
+     */
+    private void unlink(Node<K, V> node, SearchContext<K, V> context) {
+        for (int level = node.topLevel(); level >= 0; level--) {
+            Node<K, V> succ = node.getNext(level);
+            while (!(succ instanceof Marker)) {
+                node.mark(level, succ);
+                succ = node.getNext(level);
+            }
+        }
+        find(node.key, context.preds, context.succs);
+    }
+
+    /**
+     * Search of the key, as contains in the set
+     *
+     * @return the node of the key, or null if none
+     */
+    private Node<K, V> findNode(K key) {
+        int bottomLevel = 0;
+        Node<K, V> pred = head, curr = null, succ = null;
+        for (int level = topLevel; level >= bottomLevel; level--) {
+            curr = pred.getReference(level);
+            while (true) {
+                succ = curr.getNext(level);
+                // Skip the marked nodes
+                while (succ instanceof Marker) {
+                    curr = ((Marker<K, V>) succ).succ;
+                    succ = curr.getNext(level);
+                }
+                if (compare(curr, key) < 0) {
+                    pred = curr;
+                    curr = succ;
+                } else {
+                    break;
+                }
+            }
+        }
+        return compare(curr, key) == 0 ? curr : null;
+    }
+
+    boolean find(K key, Node<K, V>[] preds, Node<K, V>[] succs) {
+        int bottomLevel = 0;
+        boolean snip;
+
+        Node<K, V> pred = null, curr = null, succ = null;
+        retry: while (true) {
+            pred = head;
+            for (int level = topLevel; level >= bottomLevel; level--) {
+                curr = pred.getReference(level);
+                while (true) {
+                    succ = curr.getNext(level);
+                    while (succ instanceof Marker) {
+                        snip = pred.casNext(level, curr, ((Marker<K, V>) succ).succ);
+                        if (!snip)
+                            continue retry;
+                        curr = pred.getReference(level);
+                        succ = curr.getNext(level);
+                    }
+                    if (compare(curr, key) < 0) {
+                        pred = curr;
+                        curr = succ;
+                    } else {
+                        break;
+                    }
+                }
+                preds[level] = pred;
+                succs[level] = curr;
+            }
+            return compare(curr, key) == 0;
+        }
+    }
+
+    public String stringify() {
+        StringBuilder result = new StringBuilder("LockfreeConcurrentSkipListMap {");
+
+        Node<K, V> curr = head.getReference(0);
+        while (curr != tail) {
+            V v = curr.value;
+            if (v != null)
+                result.append("\n    ").append(curr.key).append(" = ").append(v);
+            curr = curr.getReference(0);
+        }
+
+        result.append("\n}");
+
+        return result.toString();
+    }
+
+    /**
+     * Predecessors and successors found by a search, reused by the operations
+     * of a thread
+     */
+    static final class SearchContext<K, V> {
+        final Node<K, V>[] preds;
+        final Node<K, V>[] succs;
+
+        SearchContext() {
+            preds = Node.newArray(MAX_LEVEL + 1);
+            succs = Node.newArray(MAX_LEVEL + 1);
+        }
+    }
+
+    /**
+     * Entry of the map
+     *
+     * Same layout as the nodes of the set, with a value updated through a
+     * VarHandle
+     */
+    static class Node<K, V> {
+        // Access to the cells of the 'next' arrays, with volatile semantics
+        private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+
+        // Access to the value, to CAS it
+        private static final VarHandle VALUE;
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(Node.class, "value", Object.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // Key of the entry, null for the sentinels
+        final K key;
+
+        // Value of the entry, null once removed
+        volatile V value;
+
+        // Next node at each level, or a Marker if the level is marked (the top level is next.length - 1)
+        final Node<K, V>[] next;
+
+        /**
+         * @param key    key of the entry
+         * @param value  value of the entry
+         * @param height top level of the node
+         */
+        Node(K key, V value, int height) {
+            this.key = key;
+            this.value = value;
+            next = newArray(height + 1);
+        }
+
+        // constructor for markers, that do not have any level
+        private Node() {
+            key = null;
+            next = null;
+        }
+
+        /**
+         * Array of nodes: created with wildcards, the only unchecked cast
+         */
+        @SuppressWarnings("unchecked")
+        static <K, V> Node<K, V>[] newArray(int length) {
+            return (Node<K, V>[]) new Node<?, ?>[length];
+        }
+
+        int topLevel() {
+            return next.length - 1;
+        }
+
+        boolean casValue(V expected, V value) {
+            return VALUE.compareAndSet(this, expected, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K, V> getNext(int level) {
+            return (Node<K, V>) NEXT.getVolatile(next, level);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K, V> getReference(int level) {
+            Node<K, V> succ = (Node<K, V>) NEXT.getVolatile(next, level);
+            return succ instanceof Marker ? ((Marker<K, V>) succ).succ : succ;
+        }
+
+        void setNext(int level, Node<K, V> succ) {
+            next[level] = succ;
+        }
+
+        boolean casNext(int level, Node<K, V> expected, Node<K, V> succ) {
+            return NEXT.compareAndSet(next, level, expected, succ);
+        }
+
+        boolean mark(int level, Node<K, V> succ) {
+            return NEXT.compareAndSet(next, level, succ, new Marker<K, V>(succ));
+        }
+    }
+
+    /**
+     * Marked reference to a successor, that can not be changed anymore
+     */
+    static final class Marker<K, V> extends Node<K, V> {
+        final Node<K, V> succ;
+
+        Marker(Node<K, V> succ) {
+            this.succ = succ;
+        }
+    }
+}
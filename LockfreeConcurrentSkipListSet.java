@@ -1,51 +1,130 @@
-import java.util.concurrent.atomic.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Code from H&S
  */
 
-public class LockfreeConcurrentSkipListSet<T> {
-    // Max level: 
-    static final int MAX_LEVEL = 10; 
+public class LockfreeConcurrentSkipListSet<T> implements Iterable<T> {
+    // Max level: enough for 4^16 elements with P = 0.75
+    static final int MAX_LEVEL = 16; 
 
     // probability for randomLevel method (probability of haaving a 0)
     private static final double P = 0.75;  
 
+    // Access to topLevel, to raise it
+    private static final VarHandle TOP_LEVEL;
+    static {
+        try {
+            TOP_LEVEL = MethodHandles.lookup().findVarHandle(LockfreeConcurrentSkipListSet.class, "topLevel",
+                    int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Highest level that may be populated, where the searches start.
+    // Raised by one level at a time, so that it grows with the number of elements
+    private volatile int topLevel = 0;
+
     // <A> Head of the list, first element ? 
     final Node<T> head = new Node<T>(Integer.MIN_VALUE);
     
     // <A> Tail of the list, last element ?
     final Node<T> tail = new Node<T>(Integer.MAX_VALUE);
 
+    // Striped counter of the elements, updated at the linearization points, null if not counted
+    private final LongAdder count;
+
+    // Interferences between the threads in find, add and remove, counted if ContentionCounters.ENABLED
+    static final ContentionCounters CONTENTION = ContentionCounters.register("lockfree");
+
+    // Search buffers of each thread, reused by add and remove
+    private final ThreadLocal<SearchContext<T>> contexts = ThreadLocal.withInitial(SearchContext::new);
+
+    // Generator of the levels, local to each thread
+    private static final LevelGenerator LEVELS = new LevelGenerator(P, MAX_LEVEL);
+
     /**
-     * Implementation found at
-     * https://stackoverflow.com/questions/12067045/random-level-function-in-skip-list
-     * Should validate "The randomLevel() method is designed based on empirical
-     * measurements to maintain the skiplist property."
-     * 
-     * @return level
+     * @return a level between 0 and MAX_LEVEL, following a geometric distribution of P
      */
     public static int randomLevel() {
-        int lvl = (int) (Math.log(1. - Math.random()) / Math.log(1. - P));
-        return Math.min(lvl, MAX_LEVEL);
+        return LEVELS.randomLevel();
     }
 
     public LockfreeConcurrentSkipListSet() {
+        this(true);
+    }
+
+    /**
+     * @param countSize count the elements for size(), false to avoid its cost
+     */
+    public LockfreeConcurrentSkipListSet(boolean countSize) {
+        this.count = countSize ? new LongAdder() : null;
         for (int i = 0; i < head.next.length; i++) {
-            head.next[i] = new AtomicMarkableReference<LockfreeConcurrentSkipListSet.Node<T>>(tail, false);
+            head.setNext(i, tail);
         }
     }
 
+    /**
+     * Number of elements, read from the striped counter: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     *
+     * @throws UnsupportedOperationException if the size is not counted
+     */
+    public int size() {
+        if (count == null)
+            throw new UnsupportedOperationException("size is not counted by this set");
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * @return true if there is no unmarked node at the level 0, whether the size is counted or not
+     */
+    public boolean isEmpty() {
+        Node<T> node = head.getReference(0);
+        while (node != tail && node.getNext(0) instanceof Marker)
+            node = node.getReference(0);
+        return node == tail;
+    }
+
+    /**
+     * Bound a random level to one more than the current top level, and raise
+     * the top level if needed
+     * 
+     * @param level random level
+     * @return the level to use for the new node
+     */
+    private int boundLevel(int level) {
+        int top = topLevel;
+        if (level <= top)
+            return level;
+        level = top + 1;
+        // If it fails, another thread already raised it to at least level
+        TOP_LEVEL.compareAndSet(this, top, level);
+        return level;
+    }
+
     boolean add(T x) {
+        return add(x, contexts.get());
+    }
+
+    /**
+     * Add using the given search buffers, that must not be shared between threads
+     */
+    boolean add(T x, SearchContext<T> context) {
         // <A> Top level, the maximum level where the node will be
-        int topLevel = randomLevel();
+        int topLevel = boundLevel(randomLevel());
 
         // <A> Bottom level: the level to start (what?) with
         int bottomLevel = 0;
 
         // <A> Predecessors and successors of the node to add
-        Node<T>[] preds = (Node<T>[]) new Node[MAX_LEVEL + 1];
-        Node<T>[] succs = (Node<T>[]) new Node[MAX_LEVEL + 1];
+        Node<T>[] preds = context.preds;
+        Node<T>[] succs = context.succs;
         
         while (true) {
             boolean found = find(x, preds, succs);
@@ -59,7 +138,7 @@ public class LockfreeConcurrentSkipListSet<T> {
                 // For all the levels, update the 'next' array of the node
                 for (int level = bottomLevel; level <= topLevel; level++) {
                     Node<T> succ = succs[level];
-                    newNode.next[level].set(succ, false);
+                    newNode.setNext(level, succ);
                 }
                 
                 // Lower (closer) predecessor and succesor
@@ -68,16 +147,26 @@ public class LockfreeConcurrentSkipListSet<T> {
 
                 // Set the 'next' of the predecessor to the new node, if was still the found 'succesor'
                 // Otherwise restart process
-                if (!pred.next[bottomLevel].compareAndSet(succ, newNode, false, false)) {
+                if (!pred.casNext(bottomLevel, succ, newNode)) {
+                    if (ContentionCounters.ENABLED) {
+                        CONTENTION.failedBottomCas.increment();
+                        CONTENTION.refinds.increment();
+                    }
                     continue;
                 }
+                if (count != null)
+                    count.increment();
                 for (int level = bottomLevel + 1; level <= topLevel; level++) {
                     // For each level, update the succesor of the previous node (until success of CAS)
                     while (true) {
                         pred = preds[level];
                         succ = succs[level];
-                        if (pred.next[level].compareAndSet(succ, newNode, false, false))
+                        if (pred.casNext(level, succ, newNode))
                             break;
+                        if (ContentionCounters.ENABLED) {
+                            CONTENTION.upperLinkRetries.increment();
+                            CONTENTION.refinds.increment();
+                        }
                         find(x, preds, succs);
                     }
                 }
@@ -87,9 +176,16 @@ public class LockfreeConcurrentSkipListSet<T> {
     }
 
     boolean remove(T x) {
+        return remove(x, contexts.get());
+    }
+
+    /**
+     * Remove using the given search buffers, that must not be shared between threads
+     */
+    boolean remove(T x, SearchContext<T> context) {
         int bottomLevel = 0;
-        Node<T>[] preds = (Node<T>[]) new Node[MAX_LEVEL + 1];
-        Node<T>[] succs = (Node<T>[]) new Node[MAX_LEVEL + 1];
+        Node<T>[] preds = context.preds;
+        Node<T>[] succs = context.succs;
         Node<T> succ;
         while (true) {
             boolean found = find(x, preds, succs);
@@ -97,49 +193,62 @@ public class LockfreeConcurrentSkipListSet<T> {
                 return false;
             } else {
                 Node<T> nodeToRemove = succs[bottomLevel];
-                for (int level = nodeToRemove.topLevel; level >= bottomLevel + 1; level--) {
-                    boolean[] marked = { false };
-                    succ = nodeToRemove.next[level].get(marked);
-                    while (!marked[0]) {
-                        nodeToRemove.next[level].compareAndSet(succ, succ, false, true);
-                        succ = nodeToRemove.next[level].get(marked);
+                for (int level = nodeToRemove.topLevel(); level >= bottomLevel + 1; level--) {
+                    succ = nodeToRemove.getNext(level);
+                    while (!(succ instanceof Marker)) {
+                        nodeToRemove.mark(level, succ);
+                        succ = nodeToRemove.getNext(level);
                     }
                 }
-                boolean[] marked = { false };
-                succ = nodeToRemove.next[bottomLevel].get(marked);
+                succ = nodeToRemove.getNext(bottomLevel);
                 while (true) {
-                    boolean iMarkedIt = nodeToRemove.next[bottomLevel].compareAndSet(succ, succ, false, true);
-                    succ = succs[bottomLevel].next[bottomLevel].get(marked);
+                    boolean iMarkedIt = !(succ instanceof Marker) && nodeToRemove.mark(bottomLevel, succ);
+                    succ = succs[bottomLevel].getNext(bottomLevel);
                     if (iMarkedIt) {
+                        if (count != null)
+                            count.decrement();
+                        // Unlink the node
                         find(x, preds, succs);
                         return true;
-                    } else if (marked[0])
+                    } else if (succ instanceof Marker) {
+                        if (ContentionCounters.ENABLED)
+                            CONTENTION.lostMarkRaces.increment();
                         return false;
+                    }
                 }
             }
         }
     }
 
     boolean find(T x, Node<T>[] preds, Node<T>[] succs) {
+        return find(x.hashCode(), preds, succs);
+    }
+
+    boolean find(int key, Node<T>[] preds, Node<T>[] succs) {
         int bottomLevel = 0;
-        int key = x.hashCode();
 
-        boolean[] marked = { false };
         boolean snip;
 
         Node<T> pred = null, curr = null, succ = null;
         retry: while (true) {
             pred = head;
-            for (int level = MAX_LEVEL; level >= bottomLevel; level--) {
-                curr = pred.next[level].getReference();
+            for (int level = topLevel; level >= bottomLevel; level--) {
+                curr = pred.getReference(level);
                 while (true) {
-                    succ = curr.next[level].get(marked);
-                    while (marked[0]) {
-                        snip = pred.next[level].compareAndSet(curr, succ, false, false);
-                        if (!snip)
+                    succ = curr.getNext(level);
+                    while (succ instanceof Marker) {
+                        snip = pred.casNext(level, curr, ((Marker<T>) succ).succ);
+                        if (!snip) {
+                            if (ContentionCounters.ENABLED) {
+                                CONTENTION.failedSnips.increment();
+                                CONTENTION.refinds.increment();
+                            }
                             continue retry;
-                        curr = pred.next[level].getReference();
-                        succ = curr.next[level].get(marked);
+                        }
+                        if (ContentionCounters.ENABLED)
+                            CONTENTION.snips.increment();
+                        curr = pred.getReference(level);
+                        succ = curr.getNext(level);
                     }
                     if (curr.key < key) {
                         pred = curr;
@@ -158,15 +267,15 @@ public class LockfreeConcurrentSkipListSet<T> {
     boolean contains(T x) {
         int bottomLevel = 0;
         int v = x.hashCode();
-        boolean[] marked = { false };
         Node<T> pred = head, curr = null, succ = null;
-        for (int level = MAX_LEVEL; level >= bottomLevel; level--) {
-            curr = pred.next[level].getReference(); // Replace with pred ?
+        for (int level = topLevel; level >= bottomLevel; level--) {
+            curr = pred.getReference(level);
             while (true) {
-                succ = curr.next[level].get(marked);
-                while (marked[0]) {
-                    curr = pred.next[level].getReference();
-                    succ = curr.next[level].get(marked);
+                succ = curr.getNext(level);
+                // Skip the marked nodes: pred may be marked too, and never be updated
+                while (succ instanceof Marker) {
+                    curr = ((Marker<T>) succ).succ;
+                    succ = curr.getNext(level);
                 }
                 if (curr.key < v) {
                     pred = curr;
@@ -180,41 +289,176 @@ public class LockfreeConcurrentSkipListSet<T> {
     }
 
     public String stringify() {
-        String result = "LockfreeConcurrentSkipListSet {";
+        StringBuilder result = new StringBuilder("LockfreeConcurrentSkipListSet {");
 
         int bottomLevel = 0;
-        final int lastValue = Integer.MAX_VALUE;
         Node<T> pred = head, curr = null;
 
-        for (int level = MAX_LEVEL; level >= bottomLevel; level--) {
-            result += "\n    "+level+": ";
-            curr = pred.next[level].getReference();
-            while (curr.key < lastValue) {
-                result += curr.value+" ";
-                curr = curr.next[level].getReference();
+        for (int level = topLevel; level >= bottomLevel; level--) {
+            result.append("\n    ").append(level).append(": ");
+            curr = pred.getReference(level);
+            while (curr != tail) {
+                result.append(curr.value).append(' ');
+                curr = curr.getReference(level);
             }
         }
 
-        result += "\n}";
+        result.append("\n}");
+
+        return result.toString();
+    }
+
+    /**
+     * Weakly consistent ascending iterator: it never fails because of
+     * concurrent operations, returns the elements present during the whole
+     * iteration, and may or may not return the ones added or removed meanwhile.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new SubSet(Integer.MIN_VALUE, false, 0, false).iterator();
+    }
+
+    /**
+     * View of the elements from fromElement (inclusive) to toElement (exclusive)
+     */
+    public SubSet subSet(T fromElement, T toElement) {
+        return new SubSet(fromElement.hashCode(), true, toElement.hashCode(), true);
+    }
+
+    /**
+     * View of the elements before toElement (exclusive)
+     */
+    public SubSet headSet(T toElement) {
+        return new SubSet(Integer.MIN_VALUE, false, toElement.hashCode(), true);
+    }
+
+    /**
+     * View of the elements from fromElement (inclusive)
+     */
+    public SubSet tailSet(T fromElement) {
+        return new SubSet(fromElement.hashCode(), true, 0, false);
+    }
+
+    /**
+     * @return the first node of level 0 with a key greater or equal to the
+     *         given one, found with find, or the tail
+     */
+    private Node<T> firstNode(int fromKey) {
+        SearchContext<T> context = contexts.get();
+        find(fromKey, context.preds, context.succs);
+        return context.succs[0];
+    }
+
+    /**
+     * View of a range of the set, backed by the set itself
+     */
+    public class SubSet implements Iterable<T> {
+        // Bounds of the keys: from inclusive, to exclusive
+        private final int fromKey, toKey;
+        private final boolean hasFrom, hasTo;
+
+        SubSet(int fromKey, boolean hasFrom, int toKey, boolean hasTo) {
+            if (hasFrom && hasTo && fromKey > toKey)
+                throw new IllegalArgumentException("fromElement is after toElement");
+            this.fromKey = fromKey;
+            this.hasFrom = hasFrom;
+            this.toKey = toKey;
+            this.hasTo = hasTo;
+        }
+
+        private boolean inRange(int key) {
+            return (!hasFrom || key >= fromKey) && (!hasTo || key < toKey);
+        }
+
+        private void checkRange(T x) {
+            if (!inRange(x.hashCode()))
+                throw new IllegalArgumentException("element out of range");
+        }
+
+        boolean add(T x) {
+            checkRange(x);
+            return LockfreeConcurrentSkipListSet.this.add(x);
+        }
+
+        boolean remove(T x) {
+            checkRange(x);
+            return LockfreeConcurrentSkipListSet.this.remove(x);
+        }
+
+        boolean contains(T x) {
+            return inRange(x.hashCode()) && LockfreeConcurrentSkipListSet.this.contains(x);
+        }
+
+        /**
+         * Weakly consistent ascending iterator, that jumps to the first
+         * element of the range and then walks the level 0
+         */
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private Node<T> next = skip(hasFrom ? firstNode(fromKey) : head.getReference(0));
+
+                /**
+                 * @return the first unmarked node from the given one, null after the range
+                 */
+                private Node<T> skip(Node<T> node) {
+                    while (node != tail && node.getNext(0) instanceof Marker)
+                        node = node.getReference(0);
+                    if (node == tail || (hasTo && node.key >= toKey))
+                        return null;
+                    return node;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public T next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    T value = next.value;
+                    next = skip(next.getReference(0));
+                    return value;
+                }
+            };
+        }
+    }
+
+    /**
+     * Predecessors and successors found by a search, reused by the operations
+     * of a thread so that add and remove do not allocate them
+     */
+    public static final class SearchContext<T> {
+        final Node<T>[] preds;
+        final Node<T>[] succs;
 
-        return result;
+        public SearchContext() {
+            preds = Node.newArray(MAX_LEVEL + 1);
+            succs = Node.newArray(MAX_LEVEL + 1);
+        }
     }
 
     /**
      * Node of the ListSet
+     *
+     * The next nodes are kept in a single array, updated through a VarHandle.
+     * A marked reference is stored as a Marker wrapping the successor: CAS
+     * and snips never allocate, only marking a level does.
      */
-    public static final class Node<T> {
+    public static class Node<T> {
+        // Access to the cells of the 'next' arrays, with volatile semantics
+        private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+
         // <A> Actual stored value by the node
         final T value;
 
         // <A> Key of the node, unique value corresponding to the stored object (actually hashcode) 
         final int key;
 
-        // <A> Array of the next node ?
-        final AtomicMarkableReference<Node<T>>[] next;
-
-        // <A> ?
-        private int topLevel;
+        // Next node at each level, or a Marker if the level is marked (the top level is next.length - 1)
+        final Node<T>[] next;
 
         // constructor for sentinel nodes
         public Node(int key) {
@@ -222,35 +466,90 @@ public class LockfreeConcurrentSkipListSet<T> {
 
             this.key = key; 
 
-            // <A> Create the array of next node ?
-            next = (AtomicMarkableReference<Node<T>>[]) new AtomicMarkableReference[MAX_LEVEL + 1];
-            
-            // <A> Fill the 'next' array with unmarked reference to nothing (null)
-            for (int i = 0; i < next.length; i++) {
-                next[i] = new AtomicMarkableReference<Node<T>>(null, false);
-            }
-
-
-            topLevel = MAX_LEVEL;
+            // Filled with references to nothing (null)
+            next = newArray(MAX_LEVEL + 1);
         }
 
         /**
          * constructor for ordinary nodes
          * 
          * @param x Value to store
-         * @param height ?
+         * @param height top level of the node
          */
         public Node(T x, int height) {
             // Fill the values of the node
             value = x;
             key = x.hashCode();
 
-            // <A> Create the 'next' with a length of 'height', why ?? 
-            next = (AtomicMarkableReference<Node<T>>[]) new AtomicMarkableReference[height + 1];
-            for (int i = 0; i < next.length; i++) {
-                next[i] = new AtomicMarkableReference<Node<T>>(null, false);
-            }
-            topLevel = height;
+            next = newArray(height + 1);
+        }
+
+        /**
+         * Array of nodes: created with a wildcard, the only unchecked cast
+         */
+        @SuppressWarnings("unchecked")
+        static <T> Node<T>[] newArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+
+        // constructor for markers, that do not have any level
+        private Node() {
+            value = null;
+            key = 0;
+            next = null;
+        }
+
+        int topLevel() {
+            return next.length - 1;
+        }
+
+        /**
+         * @return the successor at this level, or a Marker if the level is marked
+         */
+        @SuppressWarnings("unchecked")
+        Node<T> getNext(int level) {
+            return (Node<T>) NEXT.getVolatile(next, level);
+        }
+
+        /**
+         * @return the successor at this level, whether the level is marked or not
+         */
+        @SuppressWarnings("unchecked")
+        Node<T> getReference(int level) {
+            Node<T> succ = (Node<T>) NEXT.getVolatile(next, level);
+            return succ instanceof Marker ? ((Marker<T>) succ).succ : succ;
+        }
+
+        /**
+         * Set an unmarked successor, before the node is published
+         */
+        void setNext(int level, Node<T> succ) {
+            next[level] = succ;
+        }
+
+        /**
+         * Replace an unmarked successor by another one, fails if the level is marked
+         */
+        boolean casNext(int level, Node<T> expected, Node<T> succ) {
+            return NEXT.compareAndSet(next, level, expected, succ);
+        }
+
+        /**
+         * Mark the level, if the successor is still the expected one
+         */
+        boolean mark(int level, Node<T> succ) {
+            return NEXT.compareAndSet(next, level, succ, new Marker<T>(succ));
+        }
+    }
+
+    /**
+     * Marked reference to a successor, that can not be changed anymore
+     */
+    static final class Marker<T> extends Node<T> {
+        final Node<T> succ;
+
+        Marker(Node<T> succ) {
+            this.succ = succ;
         }
     }
 }
@@ -15,12 +15,42 @@ public class Main {
     public static void printHelp() {
         System.out.println("    Usage:");
         System.out.println(
-                "        java Main [-h | first | second | threads | linear | linear-lock | large-linear-lock | threaded-counter | all | tests]");
+                "        java Main [-h | first | second | threads [engine] | threads-streams [engine] | threads-latency [engine] | first-int | second-int | threads-int | population-alloc | search-path | level-distribution | level-bench | op-alloc | map-check | range-scan | bulk-build | batch-ingest | finger-search | off-heap | snapshot | wal | wal-recovery | no-hot-spot | filter | hash-index | hash-index-check | flat-combining | sharded | lazy | bench [engine] | contention | edge-keys | linear | linear-lock | large-linear-lock | threaded-counter | all | tests]");
         System.out.println("            -h : print this help message");
         System.out.println("            first : start the first (population) test");
         System.out.println("            second : start the second (population) test");
         System.out
                 .println("            threads : start the third test, running with several thread /!\\ Will take time");
+        System.out.println("            threads <engine> : same test with one of the engines: "
+                + String.join(", ", ThreadedTests.ENGINES));
+        System.out.println("            threads-streams [engine] : same test, from operations generated before the runs, with warmup runs, in operations by second");
+        System.out.println("            threads-latency [engine] : same test as threads-streams, with the percentiles of the latencies of add, remove and contains");
+        System.out.println("            first-int, second-int, threads-int : same tests, using the IntLockfreeSkipListSet");
+        System.out.println(
+                "            population-alloc : compare time and allocations of the generic and primitive sets on the first population");
+        System.out.println("            search-path : measure the search path length, with the previous and the current max level");
+        System.out.println("            level-distribution : check that the random levels follow the geometric distribution of P");
+        System.out.println("            level-bench : compare the level generators with 46 threads");
+        System.out.println("            op-alloc : measure the bytes allocated by add, remove and contains");
+        System.out.println("            map-check : check the lock-free map with threads updating keys whose hashes collide");
+        System.out.println("            range-scan : compare range scans through subSet and through contains");
+        System.out.println("            bulk-build : compare the build of a set from sorted keys with one add by key");
+        System.out.println("            batch-ingest : compare addAll and removeAll of sorted batches with one add or remove by key");
+        System.out.println("            finger-search : compare the searches from the head and from the last search path of the thread");
+        System.out.println("            off-heap : compare the heap and the GC pauses of the on-heap and off-heap sets on the first population");
+        System.out.println("            snapshot : compare the load of a snapshot file with the insertion of the keys");
+        System.out.println("            wal : measure the write throughput of the durable set with each sync policy of its log");
+        System.out.println("            wal-recovery : check the recovery of the durable set after a checkpoint, a crash and a torn last record");
+        System.out.println("            no-hot-spot : compare the threaded tests of the primitive set and of the no hot spot set");
+        System.out.println("            filter : compare contains with and without a counting Bloom filter, on mixes of misses");
+        System.out.println("            flat-combining : compare the throughput of the primitive set with and without flat combining, on write-heavy distributions");
+        System.out.println("            sharded : compare the throughput of the primitive set with range shards, and rebalance the hot shards");
+        System.out.println("            lazy : compare the threaded tests of the lock-free set and of the lazy (lock-based) set");
+        System.out.println("            hash-index : compare contains with and without the hash index of the nodes, at 10^6 and 10^7 elements");
+        System.out.println("            bench [engine] : benchmark the distributions and populations with 1 to 64 threads, in forked JVMs, with error bars (default engine: int)");
+        System.out.println("            contention : count the interferences between the threads in the lock-free sets, read through JMX (run with -Dskiplist.contention=true)");
+        System.out.println("            edge-keys : check the keys at the ends of the int range, those of the head and of the tail, on the int sets");
+        System.out.println("            hash-index-check : check that contains answered by the hash index sees every completed add, with threads adding the same keys, and that the index still finds the keys after churn");
         System.out.println("            linear : start the linearization test");
         System.out.println("            linear-lock : start the linearization test, using lock to prevent errors");
         System.out.println(
@@ -58,8 +88,90 @@ public class Main {
             populationTest(new FirstGenerator());
         } else if (args[0].equals("second")) {
             populationTest(new SecondGenerator());
+        } else if (args[0].equals("threads") && args.length > 1) {
+            if (!Arrays.asList(ThreadedTests.ENGINES).contains(args[1])) {
+                System.err.println("Unknown engine " + args[1] + "\n");
+                printHelp();
+                return;
+            }
+            threadedTests(args[1]);
         } else if (args[0].equals("threads")) {
             threadedTests();
+        } else if (args[0].equals("threads-streams") || args[0].equals("threads-latency")) {
+            String engine = args.length > 1 ? args[1] : "lockfree";
+            if (!Arrays.asList(ThreadedTests.ENGINES).contains(engine)) {
+                System.err.println("Unknown engine " + engine + "\n");
+                printHelp();
+                return;
+            }
+            threadedStreamTests(engine, args[0].equals("threads-latency"));
+        } else if (args[0].equals("first-int")) {
+            populationTest(new FirstGenerator(), (int) (1e7), true);
+        } else if (args[0].equals("second-int")) {
+            populationTest(new SecondGenerator(), (int) (1e7), true);
+        } else if (args[0].equals("threads-int")) {
+            threadedTests(true);
+        } else if (args[0].equals("population-alloc")) {
+            populationAllocationTest(new FirstGenerator(), (int) (1e7));
+        } else if (args[0].equals("search-path")) {
+            searchPathTest();
+        } else if (args[0].equals("level-distribution")) {
+            levelDistributionTest();
+        } else if (args[0].equals("level-bench")) {
+            levelBenchmark(46);
+        } else if (args[0].equals("op-alloc")) {
+            operationAllocationTest((int) 1e6);
+        } else if (args[0].equals("map-check")) {
+            mapCheck(8, 10, (int) 1e6);
+        } else if (args[0].equals("range-scan")) {
+            rangeScanTest((int) 1e7);
+        } else if (args[0].equals("bulk-build")) {
+            bulkBuildTest((int) 1e7);
+        } else if (args[0].equals("batch-ingest")) {
+            batchIngestTest((int) 1e6);
+        } else if (args[0].equals("finger-search")) {
+            fingerSearchTest((int) 2e6);
+        } else if (args[0].equals("off-heap")) {
+            offHeapTest(new FirstGenerator(), (int) (1e7));
+        } else if (args[0].equals("snapshot")) {
+            snapshotTest(new FirstGenerator(), (int) (1e7));
+        } else if (args[0].equals("wal")) {
+            writeAheadLogTest(8, 3000);
+        } else if (args[0].equals("wal-recovery")) {
+            writeAheadLogRecoveryTest((int) 1e5);
+        } else if (args[0].equals("no-hot-spot")) {
+            noHotSpotTest();
+        } else if (args[0].equals("filter")) {
+            filterTest((int) 1e6);
+        } else if (args[0].equals("hash-index")) {
+            hashIndexTest(new int[] { (int) 1e6, (int) 1e7 });
+        } else if (args[0].equals("hash-index-check")) {
+            hashIndexCheck(8, (int) 1e6);
+            hashIndexChurnCheck((int) 1e5, 10);
+        } else if (args[0].equals("flat-combining")) {
+            flatCombiningTest();
+        } else if (args[0].equals("sharded")) {
+            shardedTest();
+        } else if (args[0].equals("lazy")) {
+            lazyTest();
+        } else if (args[0].equals("bench")) {
+            String engine = args.length > 1 ? args[1] : "int";
+            if (!Arrays.asList(ThreadedTests.ENGINES).contains(engine)) {
+                System.err.println("Unknown engine " + engine + "\n");
+                printHelp();
+                return;
+            }
+            try {
+                Benchmark.run(engine);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (args[0].equals("edge-keys")) {
+            edgeKeyCheck("int", "flat-combining", "sharded", "off-heap");
+        } else if (args[0].equals("contention")) {
+            contentionTest();
         } else if (args[0].equals("tests")) {
             tests();
         } else if (args[0].equals("linear")) {
@@ -160,19 +272,21 @@ public class Main {
     }
 
     private static void populationTest(Generator generator) {
-        populationTest(generator, (int) (1e7));
+        populationTest(generator, (int) (1e7), false);
     }
 
     /**
      * Make the population test
      * @param generator generator to use
      * @param length length of the array
+     * @param primitive use the IntLockfreeSkipListSet instead of the generic one
      */
-    private static void populationTest(Generator generator, final int length) {
+    private static void populationTest(Generator generator, final int length, boolean primitive) {
         System.out.println("### population test");
-        System.out.println("With " + length + " members");
+        System.out.println("With " + length + " members" + (primitive ? " (primitive set)" : ""));
 
-        LockfreeConcurrentSkipListSet<Integer> skiplist = new LockfreeConcurrentSkipListSet<Integer>();
+        LockfreeConcurrentSkipListSet<Integer> skiplist = primitive ? null : new LockfreeConcurrentSkipListSet<Integer>();
+        IntLockfreeSkipListSet intSkiplist = primitive ? new IntLockfreeSkipListSet() : null;
 
         // For mean calculation
         double sum = 0;
@@ -187,7 +301,11 @@ public class Main {
             // Save the value both in the witness and the actual list
             witnessList.addFirst(number);
 
-            skiplist.add((Integer) number);
+            if (primitive) {
+                intSkiplist.add(number);
+            } else {
+                skiplist.add((Integer) number);
+            }
 
             // Show progress
             if (i % 100000 == 0) {
@@ -220,10 +338,1551 @@ public class Main {
     }
 
     /**
-     * Execute the thread tests (with both populations)
+     * Number of bytes allocated so far by the current thread
+     */
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Heap currently used, after asking for a garbage collection
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Insert the same keys in the generic and in the primitive set, and compare
+     * the execution time, the allocated bytes and the retained heap
+     * @param generator generator to use
+     * @param length number of keys to insert
+     */
+    private static void populationAllocationTest(Generator generator, final int length) {
+        System.out.println("### Population allocations");
+        System.out.println("With " + length + " members");
+
+        // Keys are generated beforehand, so that only the insertions are measured
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = generator.generate();
+
+        System.out.println("| Set                           | Execution time  | Allocated / add | Retained heap   |");
+        System.out.println("|-------------------------------|-----------------|-----------------|-----------------|");
+        for (int primitive = 0; primitive < 2; primitive++) {
+            LockfreeConcurrentSkipListSet<Integer> skiplist = null;
+            IntLockfreeSkipListSet intSkiplist = null;
+
+            long heapBefore = usedHeap();
+            long allocatedBefore = allocatedBytes();
+            long tsStart = System.nanoTime();
+            if (primitive == 0) {
+                skiplist = new LockfreeConcurrentSkipListSet<>();
+                for (int key : keys)
+                    skiplist.add(key);
+            } else {
+                intSkiplist = new IntLockfreeSkipListSet();
+                for (int key : keys)
+                    intSkiplist.add(key);
+            }
+            long duration = System.nanoTime() - tsStart;
+            long allocated = allocatedBytes() - allocatedBefore;
+            long retained = usedHeap() - heapBefore;
+
+            // Keep the sets alive until their retained heap is measured
+            java.lang.ref.Reference.reachabilityFence(skiplist);
+            java.lang.ref.Reference.reachabilityFence(intSkiplist);
+
+            String name = primitive == 0 ? "LockfreeConcurrentSkipListSet" : "IntLockfreeSkipListSet       ";
+            System.out.println("| " + name + " | " + ((int) (duration / 10_000_000) / 100.00) + "s          | "
+                    + (allocated / length) + " B           | " + (retained / 1_000_000) + " MB          |");
+        }
+    }
+
+    // Longest GC pause seen since the last reset, in milliseconds
+    private static volatile long maxGcPause = 0;
+
+    /**
+     * Record the longest GC pause, from the notifications of the collectors
+     */
+    private static void listenGcPauses() {
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            ((javax.management.NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (notification.getType()
+                        .equals(com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    long duration = com.sun.management.GarbageCollectionNotificationInfo
+                            .from((javax.management.openmbean.CompositeData) notification.getUserData()).getGcInfo()
+                            .getDuration();
+                    if (duration > maxGcPause)
+                        maxGcPause = duration;
+                }
+            }, null, null);
+        }
+    }
+
+    /**
+     * @return number of collections (first) and their time in milliseconds (second) so far
+     */
+    private static long[] gcStatistics() {
+        long[] statistics = new long[2];
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            statistics[0] += gc.getCollectionCount();
+            statistics[1] += gc.getCollectionTime();
+        }
+        return statistics;
+    }
+
+    /**
+     * Insert the same keys in the generic, the primitive and the off-heap sets,
+     * and compare the execution time, the retained heap, the off-heap memory
+     * and the GC activity during the insertions
+     * @param generator generator to use
+     * @param length number of keys to insert
+     */
+    private static void offHeapTest(Generator generator, final int length) {
+        System.out.println("### Off-heap population");
+        System.out.println("With " + length + " members");
+        listenGcPauses();
+
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = generator.generate();
+
+        String[] names = { "LockfreeConcurrentSkipListSet", "IntLockfreeSkipListSet       ",
+                "OffHeapIntSkipListSet        " };
+        System.out.println("| Set                           | Execution time | Retained heap | Off-heap | GCs  | GC time | Longest pause |");
+        System.out.println("|-------------------------------|----------------|---------------|----------|------|---------|---------------|");
+        for (int set = 0; set < 3; set++) {
+            LockfreeConcurrentSkipListSet<Integer> skiplist = null;
+            IntLockfreeSkipListSet intSkiplist = null;
+            OffHeapIntSkipListSet offHeapSkiplist = null;
+
+            long heapBefore = usedHeap();
+            long[] gcBefore = gcStatistics();
+            // Let the notifications of the collections of usedHeap arrive before the reset
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            maxGcPause = 0;
+            long tsStart = System.nanoTime();
+            if (set == 0) {
+                skiplist = new LockfreeConcurrentSkipListSet<>();
+            } else if (set == 1) {
+                intSkiplist = new IntLockfreeSkipListSet();
+            } else {
+                offHeapSkiplist = new OffHeapIntSkipListSet();
+            }
+            // Filled by its own thread: the search buffers of a thread keep the
+            // last nodes visited, and so a dropped set, until the thread ends
+            final LockfreeConcurrentSkipListSet<Integer> generic = skiplist;
+            final IntLockfreeSkipListSet primitive = intSkiplist;
+            final OffHeapIntSkipListSet offHeapSet = offHeapSkiplist;
+            Thread filler = new Thread(() -> {
+                for (int key : keys) {
+                    if (generic != null)
+                        generic.add(key);
+                    else if (primitive != null)
+                        primitive.add(key);
+                    else
+                        offHeapSet.add(key);
+                }
+            });
+            filler.start();
+            try {
+                filler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long duration = System.nanoTime() - tsStart;
+            long[] gcAfter = gcStatistics();
+            long longestPause = maxGcPause;
+            long retained = usedHeap() - heapBefore;
+            long offHeap = offHeapSkiplist == null ? 0 : offHeapSkiplist.offHeapBytes();
+
+            java.lang.ref.Reference.reachabilityFence(skiplist);
+            java.lang.ref.Reference.reachabilityFence(intSkiplist);
+            java.lang.ref.Reference.reachabilityFence(offHeapSkiplist);
+            // Release the set before the next one is measured
+            skiplist = null;
+            intSkiplist = null;
+            offHeapSkiplist = null;
+
+            System.out.println("| " + names[set] + " | " + ((int) (duration / 10_000_000) / 100.00) + "s         | "
+                    + (retained / 1_000_000) + " MB        | " + (offHeap / 1_000_000) + " MB   | "
+                    + (gcAfter[0] - gcBefore[0]) + "    | " + (gcAfter[1] - gcBefore[1]) + " ms | " + longestPause
+                    + " ms       |");
+        }
+    }
+
+    /**
+     * Measure the average number of nodes visited by a search, for several sizes
+     * of the set, with the previous max level (10) and with the current one
+     */
+    private static void searchPathTest() {
+        System.out.println("### Search path length");
+
+        int[] lengths = { (int) 1e5, (int) 1e6, (int) 1e7 };
+        int[] maxLevels = { 10, IntLockfreeSkipListSet.MAX_LEVEL };
+        final int searchCount = (int) 1e5;
+
+        System.out.println("| Elements   | Max level | Top level | Average search path |");
+        System.out.println("|------------|-----------|-----------|---------------------|");
+        for (int length : lengths) {
+            for (int maxLevel : maxLevels) {
+                Generator generator = new FirstGenerator(length);
+                IntLockfreeSkipListSet skiplist = new IntLockfreeSkipListSet(maxLevel);
+                for (int i = 0; i < length; i++)
+                    skiplist.add(generator.generate());
+
+                long pathSum = 0;
+                for (int i = 0; i < searchCount; i++)
+                    pathSum += skiplist.searchPathLength(generator.generate());
+
+                System.out.println("| " + length + " | " + maxLevel + "        | " + skiplist.topLevel()
+                        + "        | " + ((int) (pathSum * 10 / searchCount) / 10.0) + "                |");
+            }
+        }
+    }
+
+    /**
+     * Check that the histogram of the generated levels matches the geometric
+     * distribution, for several values of P
+     */
+    private static void levelDistributionTest() {
+        System.out.println("### Level distribution");
+
+        double[] probabilities = { 0.5, 0.75, 0.6, 0.9 };
+        final int maxLevel = 16;
+        final int drawCount = (int) 1e7;
+
+        for (double p : probabilities) {
+            LevelGenerator generator = new LevelGenerator(p, maxLevel);
+            long[] histogram = new long[maxLevel + 1];
+            for (int i = 0; i < drawCount; i++)
+                histogram[generator.randomLevel()]++;
+
+            System.out.println("**P = " + p + "**");
+            System.out.println("| Level | Expected   | Observed   | Test  |");
+            System.out.println("|-------|------------|------------|-------|");
+            for (int level = 0; level <= maxLevel; level++) {
+                // P(level = k) = P * (1 - P)^k, except for the capped last level
+                double expected = level < maxLevel ? drawCount * p * Math.pow(1. - p, level)
+                        : drawCount * Math.pow(1. - p, level);
+                if (expected < 1000)
+                    break; // Too few draws to be meaningful
+
+                // Accept 5 standard deviations of a binomial count
+                boolean pass = Math.abs(histogram[level] - expected) <= 5 * Math.sqrt(expected);
+                System.out.println("| " + level + "     | " + (long) expected + " | " + histogram[level] + " | "
+                        + (pass ? "PASS" : "FAILED") + "  |");
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Previous implementation of randomLevel, with the global Math.random()
+     */
+    private static int mathRandomLevel(double p, int maxLevel) {
+        int lvl = (int) (Math.log(1. - Math.random()) / Math.log(1. - p));
+        return Math.min(lvl, maxLevel);
+    }
+
+    /**
+     * Compare the time for threads to generate levels, with the previous
+     * implementation and the LevelGenerator
+     * @param threadCount number of threads
+     */
+    private static void levelBenchmark(int threadCount) {
+        System.out.println("### Level generation with " + threadCount + " threads");
+
+        final int drawCount = (int) 1e6;
+        final LevelGenerator generator = new LevelGenerator(0.75, 16);
+
+        System.out.println("| Generator               | Time                    |");
+        System.out.println("|-------------------------|-------------------------|");
+        for (int run = 0; run < 2; run++) {
+            final boolean previous = run == 0;
+            Thread[] threads = new Thread[threadCount];
+            long[] sums = new long[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                final int index = t;
+                threads[t] = new Thread(() -> {
+                    long sum = 0;
+                    for (int i = 0; i < drawCount; i++)
+                        sum += previous ? mathRandomLevel(0.75, 16) : generator.randomLevel();
+                    sums[index] = sum; // So that the draws are not optimized away
+                });
+            }
+
+            long start = System.nanoTime();
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            long duration = System.nanoTime() - start;
+
+            String name = previous ? "Math.random() and log   " : "LevelGenerator          ";
+            System.out.println("| " + name + "| " + ((int) (duration / 10_000_000) / 100.0) + "s                   |");
+        }
+    }
+
+    /**
+     * Measure the bytes allocated by each operation of the primitive set, in a
+     * steady state (set pre-filled, and code warmed up)
+     * @param length number of elements in the set, and of operations of each type
+     */
+    private static void operationAllocationTest(final int length) {
+        System.out.println("### Allocations by operation");
+        System.out.println("With " + length + " members, and " + length + " operations of each type");
+
+        IntLockfreeSkipListSet skiplist = new IntLockfreeSkipListSet();
+        Generator generator = new FirstGenerator(2 * length);
+        for (int i = 0; i < length; i++)
+            skiplist.add(generator.generate());
+
+        // Keys are generated beforehand, so that only the operations are measured
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = generator.generate();
+
+        String[] names = { "add     ", "contains", "remove  " };
+        System.out.println("| Operation | Successful | Allocated / operation |");
+        System.out.println("|-----------|------------|-----------------------|");
+        for (int round = 0; round < 2; round++) {
+            // The first round is only a warmup
+            for (int operation = 0; operation < 3; operation++) {
+                int successCount = 0;
+                long allocatedBefore = allocatedBytes();
+                for (int key : keys) {
+                    boolean success = operation == 0 ? skiplist.add(key)
+                            : operation == 1 ? skiplist.contains(key) : skiplist.remove(key);
+                    if (success)
+                        successCount++;
+                }
+                long allocated = allocatedBytes() - allocatedBefore;
+
+                if (round == 1)
+                    System.out.println("| " + names[operation] + "  | " + successCount + " | "
+                            + ((int) (allocated * 10 / length) / 10.0) + " B |");
+            }
+        }
+    }
+
+    /**
+     * Check LockfreeConcurrentSkipListMap with threads updating the same keys,
+     * that all have the same hashCode (strings of "Aa" and "BB").
+     *
+     * The values are counters: each thread counts the increments it did (with
+     * computeIfPresent and replace(key, old, new)), and the values it took
+     * out of the map (returned by put, replace, remove(key) and remove(key,
+     * value)). Without lost or duplicated update, the values left in the map
+     * and the values taken out sum to the increments. The keys must then be
+     * in their order, without duplicates.
+     *
+     * @param threadCount number of threads
+     * @param blocks      number of blocks of the keys, 2^blocks keys
+     * @param operations  operations by thread
+     */
+    private static void mapCheck(int threadCount, int blocks, int operations) {
+        System.out.println("### Check of the lock-free map");
+        String[] keys = new String[1 << blocks];
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int block = blocks - 1; block >= 0; block--)
+                key.append((i >>> block & 1) == 0 ? "Aa" : "BB");
+            keys[i] = key.toString();
+        }
+        LockfreeConcurrentSkipListMap<String, Integer> map = new LockfreeConcurrentSkipListMap<>();
+        for (String key : keys)
+            map.put(key, 0);
+        checkMapOrder(map, keys.length);
+
+        long[] increments = new long[threadCount];
+        long[] taken = new long[threadCount];
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(thread);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < operations; i++) {
+                    String key = keys[random.nextInt(keys.length)];
+                    Integer previous = null;
+                    switch (random.nextInt(7)) {
+                        case 0:
+                            previous = map.put(key, 0);
+                            break;
+                        case 1:
+                            previous = map.replace(key, 0);
+                            break;
+                        case 2:
+                            if (map.computeIfPresent(key, (k, v) -> v + 1) != null)
+                                increments[thread]++;
+                            break;
+                        case 3: {
+                            Integer value = map.get(key);
+                            if (value != null && map.replace(key, value, value + 1))
+                                increments[thread]++;
+                            break;
+                        }
+                        case 4: {
+                            Integer value = map.get(key);
+                            if (value != null && map.remove(key, value))
+                                previous = value;
+                            break;
+                        }
+                        case 5:
+                            previous = map.remove(key);
+                            break;
+                        default:
+                            map.putIfAbsent(key, 0);
+                    }
+                    if (previous != null)
+                        taken[thread] += previous;
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long left = 0;
+        int present = 0;
+        for (String key : keys) {
+            Integer value = map.get(key);
+            if (value != null) {
+                left += value;
+                present++;
+            }
+        }
+        checkMapOrder(map, present);
+        long incremented = 0, takenOut = 0;
+        for (int t = 0; t < threadCount; t++) {
+            incremented += increments[t];
+            takenOut += taken[t];
+        }
+        if (left + takenOut != incremented)
+            throw new IllegalStateException(left + " left in the map and " + takenOut + " taken out, for "
+                    + incremented + " increments");
+        System.out.println("OK: " + threadCount + " threads, " + operations + " operations each on " + keys.length
+                + " keys of the same hash, " + incremented + " increments, " + present + " keys left in order");
+    }
+
+    /**
+     * Check that the entries of the level 0 of the map are in the order of
+     * their keys, without duplicates, and that the map has their count
+     */
+    private static void checkMapOrder(LockfreeConcurrentSkipListMap<String, Integer> map, int expected) {
+        int count = 0;
+        String previous = null;
+        for (LockfreeConcurrentSkipListMap.Node<String, Integer> node = map.head.getReference(0); node != map.tail;
+                node = node.getReference(0)) {
+            if (node.value == null)
+                continue;
+            if (previous != null && previous.compareTo(node.key) >= 0)
+                throw new IllegalStateException("Key " + node.key + " after " + previous);
+            previous = node.key;
+            count++;
+        }
+        if (count != expected || map.size() != expected)
+            throw new IllegalStateException(count + " entries in order and size " + map.size() + " instead of "
+                    + expected);
+    }
+
+    /**
+     * Compare the time to scan windows of keys, with a subSet view and with a
+     * contains call for every key of the window
+     * @param length number of elements in the set
+     */
+    private static void rangeScanTest(final int length) {
+        System.out.println("### Range scans");
+        System.out.println("With " + length + " members");
+
+        LockfreeConcurrentSkipListSet<Integer> skiplist = new LockfreeConcurrentSkipListSet<>();
+        Generator generator = new FirstGenerator(length);
+        for (int i = 0; i < length; i++)
+            skiplist.add(generator.generate());
+
+        int[] windows = { 100, 10_000, 1_000_000 };
+        final int scanCount = 100;
+
+        System.out.println("| Window     | subSet          | contains        | Elements found |");
+        System.out.println("|------------|-----------------|-----------------|----------------|");
+        for (int round = 0; round < 2; round++) {
+            // The first round is only a warmup
+            for (int window : windows) {
+                int[] starts = new int[scanCount];
+                for (int i = 0; i < scanCount; i++)
+                    starts[i] = (int) (Math.random() * (length - window));
+
+                long found = 0;
+                long start = System.nanoTime();
+                for (int from : starts) {
+                    for (Integer value : skiplist.subSet(from, from + window))
+                        found++;
+                }
+                long viewDuration = System.nanoTime() - start;
+
+                long foundContains = 0;
+                start = System.nanoTime();
+                for (int from : starts) {
+                    for (int key = from; key < from + window; key++) {
+                        if (skiplist.contains(key))
+                            foundContains++;
+                    }
+                }
+                long containsDuration = System.nanoTime() - start;
+
+                if (round == 1)
+                    System.out.println("| " + window + " | " + formatNano(viewDuration / scanCount) + " | "
+                            + formatNano(containsDuration / scanCount) + " | " + (found / scanCount)
+                            + (found == foundContains ? "" : " (contains: " + (foundContains / scanCount) + ")")
+                            + " |");
+            }
+        }
+    }
+
+    /**
+     * Compare the time to fill a set with sorted keys: one add by key, and the
+     * sequential and parallel builds from the sorted keys
+     * @param length number of keys
+     */
+    private static void bulkBuildTest(final int length) {
+        System.out.println("### Bulk build");
+        System.out.println("With " + length + " keys, on " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        Generator generator = new FirstGenerator(length);
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = generator.generate();
+        Arrays.sort(keys);
+
+        String[] names = { "add by key           ", "fromSorted           ", "fromSorted (parallel)" };
+        System.out.println("| Build                 | Time        | Top level | Average search path |");
+        System.out.println("|-----------------------|-------------|-----------|---------------------|");
+        for (int build = 0; build < 3; build++) {
+            long start = System.nanoTime();
+            IntLockfreeSkipListSet skiplist;
+            if (build == 0) {
+                skiplist = new IntLockfreeSkipListSet();
+                for (int key : keys)
+                    skiplist.add(key);
+            } else {
+                skiplist = IntLockfreeSkipListSet.fromSorted(keys, build == 2);
+            }
+            long duration = System.nanoTime() - start;
+
+            // Check the content, and the quality of the index
+            long pathSum = 0;
+            for (int i = 0; i < keys.length; i += 100) {
+                if (!skiplist.contains(keys[i]))
+                    throw new IllegalStateException("Missing key " + keys[i]);
+                pathSum += skiplist.searchPathLength(keys[i]);
+            }
+
+            System.out.println("| " + names[build] + " | " + ((int) (duration / 10_000_000) / 100.0) + "s | "
+                    + skiplist.topLevel() + "        | " + ((int) (pathSum * 1000 / keys.length) / 10.0)
+                    + "                |");
+        }
+    }
+
+    /**
+     * Compare the ingest of dense sorted batches in a populated set: addAll
+     * and removeAll, that search each key from the previous one, against one
+     * add or remove by key
+     * @param length number of keys of the initial population
+     */
+    private static void batchIngestTest(final int length) {
+        System.out.println("### Batch ingest");
+        System.out.println("Population of " + length + " keys");
+
+        Generator generator = new FirstGenerator(length);
+        int[] population = new int[length];
+        for (int i = 0; i < length; i++)
+            population[i] = generator.generate();
+        Arrays.sort(population);
+
+        int[] batchSizes = { 100, 1000, 10000 };
+        int keyCount = 2_000_000;
+        System.out.println("| Batch size | add by key      | addAll          | remove by key   | removeAll       |");
+        System.out.println("|------------|-----------------|-----------------|-----------------|-----------------|");
+        for (int batchSize : batchSizes) {
+            // Dense batches: consecutive keys from a random start, outside of the population
+            int[][] batches = new int[keyCount / batchSize][batchSize];
+            Random random = new Random(batchSize);
+            for (int[] batch : batches) {
+                int first = length + random.nextInt(Integer.MAX_VALUE - length - batchSize);
+                for (int i = 0; i < batchSize; i++)
+                    batch[i] = first + i;
+            }
+
+            // Best of 3 rounds
+            long[] durations = new long[4];
+            Arrays.fill(durations, Long.MAX_VALUE);
+            for (int round = 0; round < 3; round++) {
+                for (int batched = 0; batched < 2; batched++) {
+                    IntLockfreeSkipListSet skiplist = IntLockfreeSkipListSet.fromSorted(population);
+                    int expectedSize = skiplist.size();
+                    System.gc();
+                    long start = System.nanoTime();
+                    for (int[] batch : batches) {
+                        if (batched == 1) {
+                            skiplist.addAll(batch);
+                        } else {
+                            for (int key : batch)
+                                skiplist.add(key);
+                        }
+                    }
+                    long middle = System.nanoTime();
+                    for (int[] batch : batches) {
+                        if (batched == 1) {
+                            skiplist.removeAll(batch);
+                        } else {
+                            for (int key : batch)
+                                skiplist.remove(key);
+                        }
+                    }
+                    long end = System.nanoTime();
+                    durations[batched] = Math.min(durations[batched], middle - start);
+                    durations[2 + batched] = Math.min(durations[2 + batched], end - middle);
+                    if (skiplist.size() != expectedSize)
+                        throw new IllegalStateException("Size " + skiplist.size() + " instead of " + expectedSize);
+                }
+            }
+
+            String size = String.valueOf(batchSize);
+            System.out.println("| " + size + "          ".substring(size.length()) + " | " + formatNano(durations[0])
+                    + " | " + formatNano(durations[1]) + " | " + formatNano(durations[2]) + " | "
+                    + formatNano(durations[3]) + " |");
+        }
+    }
+
+    /**
+     * Compare add, contains and remove of the keys of each generator, in the
+     * generated order, on sets searching from the head and from the last
+     * search path of the thread
+     * @param length number of keys
+     */
+    private static void fingerSearchTest(final int length) {
+        System.out.println("### Finger search");
+        System.out.println("With " + length + " keys");
+
+        // Random walk, for comparison: each key is close to the previous one
+        Generator walk = new Generator() {
+            int last = (int) 5e6;
+
+            @Override
+            public int generate() {
+                last = Math.floorMod(last + (int) (Math.random() * 2001) - 1000, (int) 1e7);
+                return last;
+            }
+        };
+        Generator[] generators = { new FirstGenerator(), new SecondGenerator(), walk };
+        String[] names = { "first (uniform)", "second (normal)", "random walk    " };
+
+        System.out.println("| Keys            | Search | add             | contains        | remove          |");
+        System.out.println("|-----------------|--------|-----------------|-----------------|-----------------|");
+        for (int g = 0; g < generators.length; g++) {
+            int[] keys = new int[length];
+            for (int i = 0; i < length; i++)
+                keys[i] = generators[g].generate();
+
+            // Best of 3 rounds
+            long[][] durations = new long[2][3];
+            for (long[] d : durations)
+                Arrays.fill(d, Long.MAX_VALUE);
+            for (int round = 0; round < 3; round++) {
+                for (int finger = 0; finger < 2; finger++) {
+                    IntLockfreeSkipListSet skiplist = new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL,
+                            false, finger == 1);
+                    System.gc();
+                    long start = System.nanoTime();
+                    for (int key : keys)
+                        skiplist.add(key);
+                    long added = System.nanoTime();
+                    for (int key : keys) {
+                        if (!skiplist.contains(key))
+                            throw new IllegalStateException("Missing key " + key);
+                    }
+                    long searched = System.nanoTime();
+                    for (int key : keys)
+                        skiplist.remove(key);
+                    long removed = System.nanoTime();
+                    if (!skiplist.isEmpty())
+                        throw new IllegalStateException("Set not empty");
+                    durations[finger][0] = Math.min(durations[finger][0], added - start);
+                    durations[finger][1] = Math.min(durations[finger][1], searched - added);
+                    durations[finger][2] = Math.min(durations[finger][2], removed - searched);
+                }
+            }
+
+            for (int finger = 0; finger < 2; finger++) {
+                System.out.println("| " + names[g] + " | " + (finger == 1 ? "finger" : "head  ") + " | "
+                        + formatNano(durations[finger][0]) + " | " + formatNano(durations[finger][1]) + " | "
+                        + formatNano(durations[finger][2]) + " |");
+            }
+        }
+    }
+
+    /**
+     * Compare the cold start of a set, by inserting its keys, with the load of
+     * its snapshot file
+     * @param generator generator to use
+     * @param length number of keys to insert
+     */
+    private static void snapshotTest(Generator generator, final int length) {
+        System.out.println("### Snapshot");
+        System.out.println("With " + length + " members");
+
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = generator.generate();
+
+        long start = System.nanoTime();
+        IntLockfreeSkipListSet skiplist = new IntLockfreeSkipListSet();
+        for (int key : keys)
+            skiplist.add(key);
+        long insertion = System.nanoTime() - start;
+
+        try {
+            java.nio.file.Path path = java.nio.file.Files.createTempFile("skiplist", ".snapshot");
+            try {
+                start = System.nanoTime();
+                long written = skiplist.snapshot(path);
+                long snapshot = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                IntLockfreeSkipListSet loaded = IntLockfreeSkipListSet.load(path);
+                long load = System.nanoTime() - start;
+
+                // Check the content
+                if (loaded.size() != skiplist.size() || written != skiplist.size())
+                    throw new IllegalStateException("Loaded " + loaded.size() + " keys instead of " + skiplist.size());
+                for (int key : keys) {
+                    if (!loaded.contains(key))
+                        throw new IllegalStateException("Missing key " + key);
+                }
+
+                System.out.println("| Operation        | Time            |");
+                System.out.println("|------------------|-----------------|");
+                System.out.println("| add of the keys  | " + formatNano(insertion) + " |");
+                System.out.println("| snapshot         | " + formatNano(snapshot) + " |");
+                System.out.println("| load             | " + formatNano(load) + " |");
+                System.out.println("Snapshot of " + written + " keys: " + java.nio.file.Files.size(path) + " bytes");
+
+                // Header of an empty snapshot, followed by a key count and keys
+                new IntLockfreeSkipListSet().snapshot(path);
+                byte[] header = Arrays.copyOf(java.nio.file.Files.readAllBytes(path), 8);
+                Object[][] corruptions = { { "key count beyond the file", 10L, new int[] { 1 } },
+                        { "negative key count", -1L, new int[] { 1 } },
+                        { "repeated key", 2L, new int[] { 5, 0 } },
+                        { "varint longer than 5 bytes", 1L, new int[] { 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01 } },
+                        { "key beyond the int range", 2L, new int[] { 0xFF, 0xFF, 0xFF, 0xFF, 0x0F, 0x01 } },
+                        { "truncated varint", 2L, new int[] { 1, 0x81 } },
+                        { "bytes after the keys", 1L, new int[] { 1, 1 } }, };
+                for (Object[] corruption : corruptions) {
+                    int[] bytes = (int[]) corruption[2];
+                    java.nio.ByteBuffer file = java.nio.ByteBuffer.allocate(16 + bytes.length).put(header)
+                            .putLong((Long) corruption[1]);
+                    for (int b : bytes)
+                        file.put((byte) b);
+                    java.nio.file.Files.write(path, file.array());
+                    try {
+                        IntLockfreeSkipListSet.load(path);
+                        throw new IllegalStateException("Snapshot with a " + corruption[0] + " loaded");
+                    } catch (java.io.IOException e) {
+                        // Expected
+                    }
+                }
+                System.out.println("OK: " + corruptions.length + " corrupt snapshots rejected with an IOException");
+            } finally {
+                java.nio.file.Files.delete(path);
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Measure the throughput of the writes (successful adds and removes) of
+     * the durable set, with each sync policy, and of the set without log
+     * @param threadCount number of threads doing random adds and removes
+     * @param durationMs duration of each measure
+     */
+    private static void writeAheadLogTest(final int threadCount, final long durationMs) {
+        System.out.println("### Write-ahead log");
+        System.out.println("With " + threadCount + " threads, " + durationMs + " ms by policy");
+        System.out.println("| Sync policy | Writes / s  | Forces  | Writes / force |");
+        System.out.println("|-------------|-------------|---------|----------------|");
+
+        WriteAheadLog.Sync[] policies = WriteAheadLog.Sync.values();
+        for (int policy = -1; policy < policies.length; policy++) {
+            try {
+                java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("skiplist");
+                final DurableIntSkipListSet durable = policy < 0 ? null
+                        : DurableIntSkipListSet.open(directory, policies[policy]);
+                final IntLockfreeSkipListSet plain = policy < 0 ? new IntLockfreeSkipListSet() : null;
+                long forcesBefore = durable == null ? 0 : durable.log().forces();
+
+                final long end = System.nanoTime() + durationMs * 1_000_000;
+                final long[] writes = new long[threadCount];
+                Thread[] threads = new Thread[threadCount];
+                for (int t = 0; t < threadCount; t++) {
+                    final int index = t;
+                    threads[t] = new Thread(() -> {
+                        java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+                        long count = 0;
+                        while (System.nanoTime() < end) {
+                            int key = random.nextInt(1_000_000);
+                            boolean written;
+                            if (random.nextBoolean())
+                                written = durable == null ? plain.add(key) : durable.add(key);
+                            else
+                                written = durable == null ? plain.remove(key) : durable.remove(key);
+                            if (written)
+                                count++;
+                        }
+                        writes[index] = count;
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+
+                long total = 0;
+                for (long count : writes)
+                    total += count;
+                long forces = durable == null ? 0 : durable.log().forces() - forcesBefore;
+                String name = policy < 0 ? "no log     " : policies[policy] + "            ".substring(policies[policy].name().length() + 1);
+                System.out.println("| " + name + " | " + (total * 1000 / durationMs) + "      | " + forces + "     | "
+                        + (forces == 0 ? "-" : String.valueOf(total / forces)) + "              |");
+
+                if (durable != null)
+                    durable.close();
+                for (java.nio.file.Path path : java.nio.file.Files.newDirectoryStream(directory))
+                    java.nio.file.Files.delete(path);
+                java.nio.file.Files.delete(directory);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check the recovery of the durable set: write, checkpoint, write more, then
+     * abandon the set without closing it (as a crash) after tearing the last
+     * record of its log, and reopen the directory. Then close it, and reopen it
+     * once more. Each recovered set must hold the expected keys.
+     *
+     * @param operationCount operations by phase, on keys in [0, operationCount)
+     */
+    private static void writeAheadLogRecoveryTest(final int operationCount) {
+        System.out.println("### Recovery of the write-ahead log");
+        Random random = new Random(0);
+        BitSet expected = new BitSet(operationCount);
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("skiplist");
+            DurableIntSkipListSet durable = DurableIntSkipListSet.open(directory, WriteAheadLog.Sync.EVERY_OP);
+            for (int phase = 0; phase < 2; phase++) {
+                for (int i = 0; i < operationCount; i++) {
+                    int key = random.nextInt(operationCount);
+                    if (random.nextBoolean()) {
+                        if (durable.add(key))
+                            expected.set(key);
+                    } else if (durable.remove(key)) {
+                        expected.clear(key);
+                    }
+                }
+                // Snapshot of the first phase, and log of the second one
+                if (phase == 0)
+                    durable.checkpoint();
+            }
+
+            // Crash: the set is abandoned, and the last record of the current log
+            // is torn, an add of a missing key of which only 3 bytes are written
+            java.nio.file.Path lastLog = null;
+            long lastGeneration = -1;
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> logs = java.nio.file.Files
+                    .newDirectoryStream(directory, "wal.*")) {
+                for (java.nio.file.Path path : logs) {
+                    long generation = Long.parseLong(path.getFileName().toString().substring(4));
+                    if (generation > lastGeneration) {
+                        lastGeneration = generation;
+                        lastLog = path;
+                    }
+                }
+            }
+            int missing = expected.nextClearBit(0);
+            try (java.nio.channels.FileChannel log = java.nio.channels.FileChannel.open(lastLog,
+                    java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND)) {
+                java.nio.ByteBuffer torn = java.nio.ByteBuffer.allocate(5).put(WriteAheadLog.ADD).putInt(missing);
+                torn.flip().limit(3);
+                log.write(torn);
+            }
+
+            for (String recovery : new String[] { "after a crash and a torn record", "after a close" }) {
+                durable = DurableIntSkipListSet.open(directory, WriteAheadLog.Sync.EVERY_OP);
+                if (durable.size() != expected.cardinality())
+                    throw new IllegalStateException("Recovered " + durable.size() + " keys " + recovery
+                            + " instead of " + expected.cardinality());
+                for (int key = 0; key < operationCount; key++) {
+                    if (durable.contains(key) != expected.get(key))
+                        throw new IllegalStateException("Key " + key + (expected.get(key) ? " lost " : " resurrected ")
+                                + recovery);
+                }
+                System.out.println("OK: " + expected.cardinality() + " keys recovered " + recovery);
+                durable.close();
+            }
+
+            for (java.nio.file.Path path : java.nio.file.Files.newDirectoryStream(directory))
+                java.nio.file.Files.delete(path);
+            java.nio.file.Files.delete(directory);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Set of an engine of a comparison, built for each execution
+     */
+    private interface EngineBuilder {
+        /**
+         * @param engine     index of the engine in the comparison
+         * @param population sorted population
+         */
+        ConcurrentIntSet build(int engine, int[] population);
+    }
+
+    /**
+     * End of a line of a comparison, after the population and the thread count
+     */
+    private interface ComparisonLine {
+        /**
+         * @param durations total durations of the executions, by engine
+         */
+        String format(int threadCount, long[] durations);
+    }
+
+    /**
+     * Compare engines on the threaded tests: for each distribution, a table with
+     * a line by population and number of threads. The executions of the
+     * engines are interleaved, each on a new set, closed after its run.
+     * @param header      header of the tables, after the population and the threads
+     * @param populations sorted populations of the two generators
+     * @param afterRun    called with each set after its run, null if none
+     */
+    private static void compareEngines(int[][] distributions, int[] threadCounts, int engineCount, int executions,
+            String header, int[][] populations, EngineBuilder builder,
+            java.util.function.ObjIntConsumer<ConcurrentIntSet> afterRun, ComparisonLine line) {
+        int operationCount = (int) 1e6;
+        for (int[] distribution : distributions) {
+            System.out.println("### " + distribution[0] + "% add, " + distribution[1] + "% remove, " + distribution[2]
+                    + "% contains");
+            System.out.println("| Population | Threads | " + header);
+            System.out.println("|------------|---------|-" + header.replaceAll("[^|]", "-"));
+            for (int generatorType = 0; generatorType < 2; generatorType++) {
+                for (int threadCount : threadCounts) {
+                    long[] durations = new long[engineCount];
+                    for (int exec = 0; exec < executions; exec++) {
+                        for (int engine = 0; engine < engineCount; engine++) {
+                            ConcurrentIntSet set = builder.build(engine, populations[generatorType]);
+                            ThreadedTests test = new ThreadedTests(threadCount, operationCount, distribution[0],
+                                    distribution[1], set);
+                            durations[engine] += test.run(generatorType);
+                            test.close();
+                            if (afterRun != null)
+                                afterRun.accept(set, engine);
+                        }
+                    }
+                    System.out.println("| " + (generatorType == 0 ? "First " : "Second") + "     | " + threadCount
+                            + (threadCount < 10 ? " " : "") + "      | " + line.format(threadCount, durations));
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return the populations of the threaded tests, sorted for the builds
+     */
+    private static int[][] sortedPopulations() {
+        return new int[][] { ThreadedTests.sortedPopulation(new FirstGenerator()),
+                ThreadedTests.sortedPopulation(new SecondGenerator()) };
+    }
+
+    /**
+     * Run the threaded tests on the primitive set, and on the no hot spot set
+     * whose index is maintained by a background thread
+     */
+    private static void noHotSpotTest() {
+        System.out.println("## No hot spot");
+
+        int[][] distributions = { { 10, 10, 80 }, { 50, 50, 0 }, { 25, 25, 50 }, { 5, 5, 90 }, };
+        int[] threadCounts = { 2, 12, 30, 46 };
+        int executions = 3;
+
+        compareEngines(distributions, threadCounts, 2, executions,
+                "IntLockfreeSkipListSet | NoHotSpotSkipListSet |", sortedPopulations(),
+                (engine, population) -> engine == 0 ? IntLockfreeSkipListSet.fromSorted(population)
+                        : NoHotSpotSkipListSet.fromSorted(population),
+                null,
+                (threadCount, durations) -> String.format(Locale.ROOT, "%-22s | %-20s |",
+                        (durations[0] / executions / 10_000_000L) / 100.0 + "s",
+                        (durations[1] / executions / 10_000_000L) / 100.0 + "s"));
+    }
+
+    /**
+     * Compare the threaded tests of the lock-free set and of the lazy set, on
+     * every distribution and both populations
+     */
+    private static void lazyTest() {
+        System.out.println("## Lazy skiplist");
+
+        int[][] distributions = { { 10, 10, 80 }, { 50, 50, 0 }, { 25, 25, 50 }, { 5, 5, 90 }, };
+        int[] threadCounts = { 2, 12, 30, 46 };
+        int executions = 3;
+
+        // Same populations as the threaded tests, added in ascending order to both sets
+        compareEngines(distributions, threadCounts, 2, executions,
+                "LockfreeConcurrentSkipListSet | LazySkipListSet |", sortedPopulations(), (engine, population) -> {
+                    ConcurrentIntSet set = ThreadedTests.newEngine(engine == 0 ? "lockfree" : "lazy");
+                    for (int key : population)
+                        set.add(key);
+                    return set;
+                }, null, (threadCount, durations) -> String.format(Locale.ROOT, "%-29s | %-15s |",
+                        (durations[0] / executions / 10_000_000L) / 100.0 + "s",
+                        (durations[1] / executions / 10_000_000L) / 100.0 + "s"));
+    }
+
+    /**
+     * Compare the throughput of the primitive set and of sharded sets, then
+     * rebalance a sharded set under the normal population
+     */
+    private static void shardedTest() {
+        System.out.println("## Sharded set");
+
+        int operationCount = (int) 1e6;
+        int[][] distributions = { { 10, 10, 80 }, { 50, 50, 0 }, };
+        int[] threadCounts = { 2, 46 };
+        int[] shardCounts = { 1, 4, 16, 64 };
+        int executions = 3;
+
+        int[][] populations = sortedPopulations();
+        compareEngines(distributions, threadCounts, shardCounts.length, executions,
+                "Unsharded (ops/s) | 4 shards  | 16 shards | 64 shards |", populations,
+                (engine, population) -> shardCounts[engine] == 1 ? IntLockfreeSkipListSet.fromSorted(population)
+                        : ShardedSkipListSet.fromSorted(population, shardCounts[engine], 0, (int) 1e7, false),
+                null, (threadCount, durations) -> {
+                    StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%,17d |",
+                            operationCount * executions * 1_000_000_000L / durations[0]));
+                    for (int engine = 1; engine < durations.length; engine++)
+                        line.append(String.format(Locale.ROOT, " %,9d |",
+                                operationCount * executions * 1_000_000_000L / durations[engine]));
+                    return line.toString();
+                });
+
+        // Rebalance of 16 shards of equal ranges, the normal population
+        // concentrating the operations on the middle ones
+        System.out.println("### Rebalance, normal population, 25% add, 25% remove, 50% contains, 46 threads");
+        System.out.println("| Round | Shards | Operations of the hottest shard | ops/s     |");
+        System.out.println("|-------|--------|---------------------------------|-----------|");
+        ShardedSkipListSet sharded = ShardedSkipListSet.fromSorted(populations[1], 16, 0, (int) 1e7, true);
+        for (int round = 0; round < 5; round++) {
+            ThreadedTests test = new ThreadedTests(46, operationCount, 25, 25, true);
+            test.setList(sharded);
+            long duration = test.run(1);
+            long[] counts = sharded.operationCounts();
+            long max = 0;
+            for (long count : counts)
+                max = Math.max(max, count);
+            System.out.println(String.format(Locale.ROOT, "| %-5d | %-6d | %30.1f%% | %,9d |", round,
+                    sharded.shardCount(), max * 100.0 / operationCount, operationCount * 1_000_000_000L / duration));
+            sharded.rebalance();
+        }
+        System.out.println();
+    }
+
+    /**
+     * Compare the throughput of the primitive set, written directly or through
+     * its flat combining front end, on the write-heavy distributions
+     */
+    private static void flatCombiningTest() {
+        System.out.println("## Flat combining");
+
+        int operationCount = (int) 1e6;
+        int[][] distributions = { { 50, 50, 0 }, { 25, 25, 50 }, };
+        int[] threadCounts = { 1, 2, 4, 8, 12, 30, 46 };
+        int executions = 3;
+
+        // Requests by batch of the flat combining runs of the current line
+        double[] batch = new double[1];
+        compareEngines(distributions, threadCounts, 2, executions,
+                "Lock-free (ops/s) | Flat combining (ops/s) | Requests by batch |", sortedPopulations(),
+                (engine, population) -> {
+                    IntLockfreeSkipListSet set = IntLockfreeSkipListSet.fromSorted(population);
+                    return engine == 0 ? set : new FlatCombiningSkipListSet(set);
+                }, (set, engine) -> {
+                    if (engine == 1)
+                        batch[0] += ((FlatCombiningSkipListSet) set).averageBatch() / executions;
+                }, (threadCount, durations) -> {
+                    String line = String.format(Locale.ROOT, "%,17d | %,22d | %17.2f |",
+                            operationCount * executions * 1_000_000_000L / durations[0],
+                            operationCount * executions * 1_000_000_000L / durations[1], batch[0]);
+                    batch[0] = 0;
+                    return line;
+                });
+    }
+
+    /**
+     * Compare contains on the primitive set, with and without its counting
+     * Bloom filter, for several proportions of misses
+     * @param length number of keys to insert
+     */
+    private static void filterTest(final int length) {
+        System.out.println("### Counting Bloom filter");
+        System.out.println("With " + length + " members");
+
+        // Even members, so that the misses (odd keys) are spread among them
+        Generator generator = new FirstGenerator();
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = 2 * generator.generate();
+
+        IntLockfreeSkipListSet skiplist = new IntLockfreeSkipListSet();
+        IntLockfreeSkipListSet filtered = new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL, true, false,
+                length);
+        for (int key : keys) {
+            skiplist.add(key);
+            filtered.add(key);
+        }
+        CountingBloomFilter filter = filtered.filter();
+
+        Random random = new Random(0);
+        int queryCount = (int) 1e6;
+        int[] missRates = { 0, 50, 90, 99 };
+        System.out.println("| Misses | Without filter  | With filter     | Measured false positives |");
+        System.out.println("|--------|-----------------|-----------------|--------------------------|");
+        for (int missRate : missRates) {
+            int[] queries = new int[queryCount];
+            for (int i = 0; i < queryCount; i++) {
+                queries[i] = random.nextInt(100) < missRate ? 2 * random.nextInt((int) 1e7) + 1
+                        : keys[random.nextInt(length)];
+            }
+
+            // Best of 3 rounds
+            long[] durations = { Long.MAX_VALUE, Long.MAX_VALUE };
+            int found = 0;
+            for (int round = 0; round < 3; round++) {
+                for (int withFilter = 0; withFilter < 2; withFilter++) {
+                    IntLockfreeSkipListSet set = withFilter == 0 ? skiplist : filtered;
+                    int hits = 0;
+                    long start = System.nanoTime();
+                    for (int key : queries) {
+                        if (set.contains(key))
+                            hits++;
+                    }
+                    durations[withFilter] = Math.min(durations[withFilter], System.nanoTime() - start);
+                    if (withFilter == 0)
+                        found = hits;
+                    else if (hits != found)
+                        throw new IllegalStateException(hits + " keys found with the filter instead of " + found);
+                }
+            }
+
+            // Misses that pass the filter
+            int misses = 0, falsePositives = 0;
+            for (int key : queries) {
+                if (key % 2 == 1) {
+                    misses++;
+                    if (filter.mightContain(key))
+                        falsePositives++;
+                }
+            }
+            String rate = misses == 0 ? "-" : String.format(Locale.ROOT, "%.3f%%", falsePositives * 100.0 / misses);
+            System.out.println("| " + missRate + "%" + "     ".substring(String.valueOf(missRate).length()) + " | "
+                    + formatNano(durations[0]) + " | " + formatNano(durations[1]) + " | " + rate + " |");
+        }
+        System.out.println("Estimated false positive rate: "
+                + String.format(Locale.ROOT, "%.3f%%", filter.falsePositiveRate() * 100) + ", memory of the filter: "
+                + filter.memoryBytes() / 1024 + " KB (" + (filter.memoryBytes() * 8 / filtered.size())
+                + " bits by element)");
+    }
+
+    /**
+     * Compare contains on the primitive set, searching the skiplist or reading
+     * its hash index, half of the queries being misses
+     * @param lengths numbers of keys to insert
+     */
+    private static void hashIndexTest(final int[] lengths) {
+        System.out.println("### Hash index of the nodes");
+        System.out.println("| Elements | Skiplist        | Hash index      | Speedup | Memory of the index |");
+        System.out.println("|----------|-----------------|-----------------|---------|---------------------|");
+        Random random = new Random(0);
+        int queryCount = (int) 1e6;
+        for (int length : lengths) {
+            // Even members, so that the misses (odd keys) are spread among them
+            Generator generator = new FirstGenerator(1 << 29);
+            int[] keys = new int[length];
+            for (int i = 0; i < length; i++)
+                keys[i] = 2 * generator.generate();
+            int[] queries = new int[queryCount];
+            for (int i = 0; i < queryCount; i++)
+                queries[i] = random.nextBoolean() ? keys[random.nextInt(length)] : 2 * random.nextInt(1 << 29) + 1;
+
+            // One set at a time, to hold 10^7 nodes in the heap
+            long[] durations = new long[2];
+            int found = 0;
+            long indexBytes = 0;
+            for (int withIndex = 0; withIndex < 2; withIndex++) {
+                final IntLockfreeSkipListSet set = new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL, true,
+                        false, 0, withIndex == 0 ? 0 : length);
+                // Filled by its own thread: the search buffers of a thread keep the
+                // last nodes visited, and so a dropped set, until the thread ends
+                Thread filler = new Thread(() -> {
+                    for (int key : keys)
+                        set.add(key);
+                });
+                filler.start();
+                try {
+                    filler.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                // Best of 3 rounds
+                durations[withIndex] = Long.MAX_VALUE;
+                for (int round = 0; round < 3; round++) {
+                    int hits = 0;
+                    long start = System.nanoTime();
+                    for (int key : queries) {
+                        if (set.contains(key))
+                            hits++;
+                    }
+                    durations[withIndex] = Math.min(durations[withIndex], System.nanoTime() - start);
+                    if (withIndex == 0)
+                        found = hits;
+                    else if (hits != found)
+                        throw new IllegalStateException(hits + " keys found with the index instead of " + found);
+                }
+                if (withIndex == 1)
+                    indexBytes = set.index().memoryBytes();
+                System.gc();
+            }
+            System.out.println("| 10^" + (int) Math.round(Math.log10(length)) + "     | " + formatNano(durations[0])
+                    + " | " + formatNano(durations[1]) + " | "
+                    + String.format(Locale.ROOT, "%.1fx", (double) durations[0] / durations[1]) + "   | "
+                    + indexBytes / (1024 * 1024) + " MB (" + indexBytes / length + " B/element) |");
+        }
+    }
+
+    /**
+     * Concurrent check of contains with the hash index: the threads add the same
+     * keys, in the same order, and each one checks with contains every key it
+     * added or found. A key that add found is in the set, as its node is linked,
+     * even if the add that linked it has not indexed it yet: contains must see it.
+     *
+     * @param threadCount number of threads adding the keys
+     * @param length      number of keys
+     */
+    private static void hashIndexCheck(int threadCount, int length) {
+        System.out.println("### Check of contains with the hash index");
+        IntLockfreeSkipListSet set = new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL, true, false, 0,
+                length);
+        // Shuffled keys, so that the threads do not search from the same nodes
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++)
+            keys[i] = i;
+        Random random = new Random(0);
+        for (int i = length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+
+        java.util.concurrent.atomic.AtomicInteger misses = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int key : keys) {
+                    set.add(key);
+                    if (!set.contains(key))
+                        misses.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (set.size() != length)
+            throw new IllegalStateException("Size " + set.size() + " instead of " + length);
+        for (int key : keys) {
+            if (!set.contains(key))
+                throw new IllegalStateException("Missing key " + key);
+        }
+        if (misses.get() > 0)
+            throw new IllegalStateException(misses.get() + " keys added or found, then not seen by contains");
+        System.out.println("OK: " + threadCount + " threads, " + length + " keys, every key added or found seen by contains");
+    }
+
+    /**
+     * Check that the hash index still answers after churn: rounds of new keys
+     * are added, then removed, and a last round of new keys must be found by
+     * the index, in the slots left by the removed ones.
+     *
+     * @param length number of keys of a round, the capacity of the index
+     * @param rounds number of rounds added and removed before the last one
+     */
+    private static void hashIndexChurnCheck(int length, int rounds) {
+        System.out.println("### Check of the hash index after churn");
+        IntLockfreeSkipListSet set = new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL, true, false, 0,
+                length);
+        NodeHashIndex index = set.index();
+        for (int round = 0; round < rounds; round++) {
+            for (int key = round * length; key < (round + 1) * length; key++)
+                set.add(key);
+            for (int key = round * length; key < (round + 1) * length; key++)
+                set.remove(key);
+        }
+        for (int key = 0; key < rounds * length; key++) {
+            if (index.lookup(key) == NodeHashIndex.PRESENT)
+                throw new IllegalStateException("Removed key " + key + " found by the index");
+        }
+
+        int hits = 0;
+        for (int key = rounds * length; key < (rounds + 1) * length; key++) {
+            set.add(key);
+            if (index.lookup(key) == NodeHashIndex.PRESENT)
+                hits++;
+        }
+        if (hits < length * 0.99)
+            throw new IllegalStateException("Only " + hits + " of " + length + " keys found by the index after churn");
+        System.out.println("OK: " + rounds + " rounds of " + length + " keys added and removed, then " + hits + " of "
+                + length + " new keys found by the index");
+    }
+
+    // Keys at the ends of the int range, and some keys between them
+    private static final int[] EDGE_KEYS = { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0,
+            Integer.MAX_VALUE - 1, Integer.MAX_VALUE };
+
+    /**
+     * Check the keys at the ends of the int range, that are also the keys of
+     * the head and of the tail of the sets: on an empty set, added, removed
+     * first and last, then with other keys.
+     * @param engines engines of ThreadedTests.newEngine
+     */
+    private static void edgeKeyCheck(String... engines) {
+        System.out.println("### Check of the keys at the ends of the int range");
+        for (String engine : engines)
+            edgeKeyCheck(engine, ThreadedTests.newEngine(engine), Main::checkEdgeKeys);
+        NoHotSpotSkipListSet noHotSpot = new NoHotSpotSkipListSet();
+        noHotSpot.start();
+        edgeKeyCheck("no-hot-spot", noHotSpot, set -> {
+            checkEdgeKeys(set);
+            checkMaintenance((NoHotSpotSkipListSet) set);
+        });
+        edgeKeyCheck("int, with filter and index",
+                new IntLockfreeSkipListSet(IntLockfreeSkipListSet.MAX_LEVEL, true, false, 1000, 1000),
+                Main::checkEdgeKeys);
+        edgeKeyCheck("sharded, rebalanced", new ShardedSkipListSet(4, 0, 100, true),
+                set -> checkShardedEdgeKeys((ShardedSkipListSet) set));
+    }
+
+    /**
+     * Run a check of a set in its own thread, so that a search that never
+     * ends is reported, then close the set if it has to be
+     */
+    private static void edgeKeyCheck(String name, ConcurrentIntSet set,
+            java.util.function.Consumer<ConcurrentIntSet> checker) {
+        Throwable[] failure = new Throwable[1];
+        Thread check = new Thread(() -> {
+            try {
+                checker.accept(set);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "edge-keys-" + name);
+        check.setDaemon(true);
+        check.start();
+        try {
+            check.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (check.isAlive())
+            throw new IllegalStateException(name + ": the operations on the edge keys never end");
+        if (failure[0] != null)
+            throw new IllegalStateException(name + ": " + failure[0], failure[0]);
+        if (set instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) set).close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        System.out.println("OK: " + name);
+    }
+
+    private static void checkEdgeKeys(ConcurrentIntSet set) {
+        int[] keys = EDGE_KEYS;
+        for (int key : keys) {
+            if (set.contains(key) || set.remove(key))
+                throw new IllegalStateException("Key " + key + " found in an empty set");
+        }
+        for (int key : keys) {
+            if (!set.add(key) || set.add(key) || !set.contains(key))
+                throw new IllegalStateException("Key " + key + " not added once");
+        }
+        expectSize(set, keys.length);
+
+        // The highest and the lowest keys removed, then the others still there
+        for (int key : new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+            if (!set.remove(key) || set.remove(key) || set.contains(key))
+                throw new IllegalStateException("Key " + key + " not removed once");
+        }
+        for (int key : keys) {
+            if (set.contains(key) != (key != Integer.MAX_VALUE && key != Integer.MIN_VALUE))
+                throw new IllegalStateException("Key " + key + (set.contains(key) ? " found" : " lost"));
+        }
+        expectSize(set, keys.length - 2);
+
+        for (int key : keys) {
+            set.add(key);
+            if (!set.remove(key) || set.contains(key))
+                throw new IllegalStateException("Key " + key + " not removed");
+        }
+        expectSize(set, 0);
+
+        // The set still works after them
+        for (int key = -1000; key < 1000; key++)
+            set.add(key);
+        for (int key = -1000; key < 1000; key += 2)
+            set.remove(key);
+        for (int key = -1000; key < 1000; key++) {
+            if (set.contains(key) != ((key & 1) != 0))
+                throw new IllegalStateException("Key " + key + " wrong after the edge keys");
+        }
+        expectSize(set, 1000);
+    }
+
+    /**
+     * The edge keys in the first and the last shards, iterated and kept when
+     * the last shard, made hot, is split by rebalance
+     */
+    private static void checkShardedEdgeKeys(ShardedSkipListSet set) {
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int key : EDGE_KEYS)
+            expected.add(key);
+        for (int key = 0; key < 100; key++)
+            expected.add(key);
+        for (int key : expected)
+            set.add(key);
+        for (int i = 0; i < 1000; i++)
+            set.contains(Integer.MAX_VALUE);
+        expectShardedKeys(set, expected);
+        if (set.rebalance() == 0)
+            throw new IllegalStateException("The hot last shard is not split");
+        expectShardedKeys(set, expected);
+    }
+
+    /**
+     * Wait for two more passes of the maintenance, that must not have failed
      */
+    private static void checkMaintenance(NoHotSpotSkipListSet set) {
+        long passes = set.passes() + 2;
+        while (set.passes() < passes && set.failures() == 0)
+            Thread.onSpinWait();
+        if (set.failures() > 0)
+            throw new IllegalStateException(set.failures() + " failed passes of the maintenance", set.failure());
+    }
+
+    private static void expectShardedKeys(ShardedSkipListSet set, TreeSet<Integer> expected) {
+        for (int key : expected) {
+            if (!set.contains(key))
+                throw new IllegalStateException("Key " + key + " lost");
+        }
+        expectSize(set, expected.size());
+        List<Integer> iterated = new ArrayList<>();
+        for (PrimitiveIterator.OfInt it = set.iterator(); it.hasNext();)
+            iterated.add(it.nextInt());
+        if (!iterated.equals(new ArrayList<>(expected)))
+            throw new IllegalStateException("Iterated " + iterated.size() + " keys instead of " + expected.size()
+                    + ", last " + (iterated.isEmpty() ? "none" : iterated.get(iterated.size() - 1)));
+    }
+
+    private static void expectSize(ConcurrentIntSet set, int expected) {
+        if (set.size() != expected)
+            throw new IllegalStateException("Size " + set.size() + " instead of " + expected);
+    }
+
     private static void threadedTests() {
-        System.out.println("## Tests with Several threads");
+        threadedTests(false);
+    }
+
+    /**
+     * Execute the thread tests (with both populations)
+     * @param primitive use the IntLockfreeSkipListSet instead of the generic one
+     */
+    private static void threadedTests(boolean primitive) {
+        threadedTests(primitive, null);
+    }
+
+    /**
+     * Execute the thread tests (with both populations) on an engine
+     * @param engine one of ThreadedTests.ENGINES, filled by adds
+     */
+    private static void threadedTests(String engine) {
+        threadedTests(false, engine);
+    }
+
+    /**
+     * @param primitive use the IntLockfreeSkipListSet instead of the generic one
+     * @param engine    engine to use instead, null for none
+     */
+    private static void threadedTests(boolean primitive, String engine) {
+        System.out.println("## Tests with Several threads"
+                + (engine != null ? " (" + engine + ")" : primitive ? " (primitive set)" : ""));
 
         // Number of operations
         int operationCount = (int) 1e6;
@@ -262,10 +1921,14 @@ public class Main {
                     // Execute 10 times the test, in order to have an average of the execution time
                     long totalDuration = 0;
                     for (int exec = 0; exec < 10; exec++) {
-                        ThreadedTests test = new ThreadedTests(threadCount, operationCount, distribution[0],
-                                distribution[1]);
+                        ThreadedTests test = engine != null
+                                ? new ThreadedTests(threadCount, operationCount, distribution[0], distribution[1],
+                                        ThreadedTests.newEngine(engine))
+                                : new ThreadedTests(threadCount, operationCount, distribution[0], distribution[1],
+                                        primitive);
                         test.fillUpListWithSet(generatorType == 0 ? firstPopulation : secondPopulation);
                         long duration = test.run(generatorType);
+                        test.close();
                         totalDuration += duration;
                     }
                     String timeS = (totalDuration / 1_000_000L) / 100.0 + "s";
@@ -276,6 +1939,186 @@ public class Main {
         }
     }
 
+    /**
+     * Execute the thread tests from the streams of ThreadedTests: operations and
+     * keys generated before the runs, threads released together by a barrier,
+     * and warmup runs before the measured ones. Each run starts from a new set,
+     * filled with the population, and replays the same streams.
+     * @param engine one of ThreadedTests.ENGINES, filled by adds
+     * @param recordLatencies record the latency of each operation of the
+     *                        measured runs, and print their percentiles
+     */
+    private static void threadedStreamTests(String engine, boolean recordLatencies) {
+        System.out.println("## Tests with Several threads, from generated streams (" + engine + ")"
+                + (recordLatencies ? ", with latencies" : ""));
+
+        // Number of operations
+        int operationCount = (int) 1e6;
+        int warmups = 2;
+        int runs = 5;
+
+        // Distributions (%age of add, remove and contains)
+        int[][] distributions = { { 10, 10, 80 }, { 50, 50, 0 }, { 25, 25, 50 }, { 5, 5, 90 }, };
+        int[] threadCounts = { 2, 12, 30, 46 };
+
+        // Build populations
+        System.out.println("Building populations");
+        Set<Integer> firstPopulation = new HashSet<>();
+        Generator generator = new FirstGenerator();
+        for (int i = 0; i < 1e6; i++)
+            firstPopulation.add(generator.generate());
+
+        Set<Integer> secondPopulation = new HashSet<>();
+        generator = new SecondGenerator();
+        for (int i = 0; i < 1e6; i++)
+            secondPopulation.add(generator.generate());
+
+        int indexDistrib = 0;
+        for (int[] distribution : distributions) {
+            System.out.println("## Distribution " + (++indexDistrib));
+            System.out.println("* " + distribution[0] + "% add");
+            System.out.println("* " + distribution[1] + "% remove");
+            System.out.println("* " + distribution[2] + "% contains");
+            System.out.println();
+
+            for (int generatorType = 0; generatorType < 2; generatorType++) {
+                System.out.println("### " + (generatorType == 0 ? "First" : "Second") + " population");
+
+                System.out.println("| Threads | Throughput (ops/s) | Spread of the runs        | By thread (ops/s) | Slowest - fastest thread |");
+                System.out.println("|---------|--------------------|---------------------------|-------------------|--------------------------|");
+
+                // Latencies of the measured runs, by number of threads and by operation
+                LatencyHistogram[][] latencies = new LatencyHistogram[threadCounts.length][];
+                int indexThreads = 0;
+                for (int threadCount : threadCounts) {
+                    latencies[indexThreads] = new LatencyHistogram[] { new LatencyHistogram(), new LatencyHistogram(),
+                            new LatencyHistogram() };
+                    ThreadedTests.Streams streams = null;
+                    double[] throughputs = new double[runs];
+                    double threadSum = 0;
+                    double slowest = Double.MAX_VALUE, fastest = 0;
+                    for (int run = -warmups; run < runs; run++) {
+                        ThreadedTests test = new ThreadedTests(threadCount, operationCount, distribution[0],
+                                distribution[1], ThreadedTests.newEngine(engine));
+                        test.fillUpListWithSet(generatorType == 0 ? firstPopulation : secondPopulation);
+                        if (streams == null)
+                            streams = test.generateStreams(generatorType);
+                        if (recordLatencies && run >= 0)
+                            test.recordLatencies();
+                        long[] durations = test.runStreams(streams);
+                        test.close();
+                        if (run < 0)
+                            continue;
+                        if (recordLatencies) {
+                            for (int operation = 0; operation < 3; operation++)
+                                latencies[indexThreads][operation].add(test.latencies()[operation]);
+                        }
+                        throughputs[run] = operationCount * 1e9 / durations[threadCount];
+                        for (int i = 0; i < threadCount; i++) {
+                            double throughput = streams.length(i) * 1e9 / durations[i];
+                            threadSum += throughput;
+                            slowest = Math.min(slowest, throughput);
+                            fastest = Math.max(fastest, throughput);
+                        }
+                    }
+
+                    double mean = 0, min = Double.MAX_VALUE, max = 0;
+                    for (double throughput : throughputs) {
+                        mean += throughput / runs;
+                        min = Math.min(min, throughput);
+                        max = Math.max(max, throughput);
+                    }
+                    double variance = 0;
+                    for (double throughput : throughputs)
+                        variance += (throughput - mean) * (throughput - mean) / (runs - 1);
+                    System.out.println(String.format(Locale.ROOT, "| %-7d | %-18s | %-25s | %-17s | %-24s |",
+                            threadCount, String.format(Locale.ROOT, "%,.0f", mean),
+                            String.format(Locale.ROOT, "%,.0f - %,.0f (%.1f%%)", min, max,
+                                    100 * Math.sqrt(variance) / mean),
+                            String.format(Locale.ROOT, "%,.0f", threadSum / (runs * threadCount)),
+                            String.format(Locale.ROOT, "%,.0f - %,.0f", slowest, fastest)));
+                    indexThreads++;
+                }
+                System.out.println();
+
+                if (recordLatencies) {
+                    System.out.println("Latencies (ns), p50 / p99 / p99.9:");
+                    System.out.println();
+                    System.out.println("| Threads | add                      | remove                   | contains                 |");
+                    System.out.println("|---------|--------------------------|--------------------------|--------------------------|");
+                    for (int i = 0; i < threadCounts.length; i++) {
+                        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "| %-7d |", threadCounts[i]));
+                        for (LatencyHistogram histogram : latencies[i]) {
+                            line.append(String.format(Locale.ROOT, " %-24s |", histogram.count() == 0 ? "-"
+                                    : String.format(Locale.ROOT, "%,d / %,d / %,d", histogram.percentile(50),
+                                            histogram.percentile(99), histogram.percentile(99.9))));
+                        }
+                        System.out.println(line);
+                    }
+                    System.out.println();
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the interferences in find, add and remove of the lock-free sets, on
+     * the streams of the write-only distribution with the second population,
+     * and read the counters through their MBeans
+     */
+    private static void contentionTest() {
+        if (!ContentionCounters.ENABLED) {
+            System.err.println("The contention counters are disabled: run with -Dskiplist.contention=true");
+            return;
+        }
+        System.out.println("## Contention counters");
+
+        int operationCount = (int) 1e6;
+        int[] threadCounts = { 2, 12, 30, 46 };
+        String[] engines = { "lockfree", "int" };
+
+        Set<Integer> population = new HashSet<>();
+        Generator generator = new SecondGenerator();
+        for (int i = 0; i < 1e6; i++)
+            population.add(generator.generate());
+
+        javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        for (String engine : engines) {
+            System.out.println("### " + engine + ", 50% add, 50% remove, counts for 10^6 operations");
+            System.out.println("| Threads | Snips   | Failed snips | Failed bottom CAS | Upper link retries | Re-finds | Lost mark races |");
+            System.out.println("|---------|---------|--------------|-------------------|--------------------|----------|-----------------|");
+            for (int threadCount : threadCounts) {
+                ContentionCountersMBean counters = null;
+                ThreadedTests.Streams streams = null;
+                // A warmup run, then the measured one
+                for (int run = 0; run < 2; run++) {
+                    ThreadedTests test = new ThreadedTests(threadCount, operationCount, 50, 50,
+                            ThreadedTests.newEngine(engine));
+                    test.fillUpListWithSet(population);
+                    if (streams == null)
+                        streams = test.generateStreams(1);
+                    // Registered once the class of the set is initialized
+                    if (counters == null) {
+                        try {
+                            counters = javax.management.JMX.newMBeanProxy(server,
+                                    new javax.management.ObjectName("skiplist:type=Contention,name=" + engine),
+                                    ContentionCountersMBean.class);
+                        } catch (javax.management.MalformedObjectNameException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                    counters.reset();
+                    test.runStreams(streams);
+                    test.close();
+                }
+                System.out.println(String.format(Locale.ROOT, "| %-7d | %-7d | %-12d | %-17d | %-18d | %-8d | %-15d |",
+                        threadCount, counters.getSnips(), counters.getFailedSnips(), counters.getFailedBottomCas(),
+                        counters.getUpperLinkRetries(), counters.getRefinds(), counters.getLostMarkRaces()));
+            }
+            System.out.println();
+        }
+    }
+
     /**
      * Execute the first linearization test, with the shared counter
      */
@@ -468,6 +2311,7 @@ public class Main {
         System.out.println("--- ---------- --");
 
         System.out.println("Set contains 13: " + set.contains(13));
+        System.out.println("Set size: " + set.size());
 
         for (int i = 0; i < 10; i++) {
             set.remove(i);
@@ -0,0 +1,470 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * "No hot spot" skiplist of int keys (Crain, Gramoli and Raynal): add and
+ * remove only touch the level 0, a lock-free sorted list, and a background
+ * thread maintains the upper levels (the index).
+ *
+ * The maintenance thread is the only writer of the index: it walks each level,
+ * removes the towers of the removed nodes, raises a node when STRIDE nodes
+ * follow the last tower, lowers a tower that is less than MIN_GAP nodes after
+ * the previous one, and adds or removes a level at the top. The height follows
+ * the actual size, without any CAS on the upper levels.
+ *
+ * The searches go down the index to the closest unmarked node before the key,
+ * that may be stale but is still in the list, and end at the level 0.
+ * Call close() to stop the maintenance thread.
+ *
+ * The keys of the head and of the tail, Integer.MIN_VALUE and
+ * Integer.MAX_VALUE, can be in the set too: a search only matches a node
+ * that is not the tail, and never the head.
+ */
+public class NoHotSpotSkipListSet implements ConcurrentIntSet, AutoCloseable {
+    // Number of levels of the index at most
+    static final int MAX_LEVEL = 16;
+
+    // Number of nodes after a tower from which the next one is raised
+    private static final int STRIDE = 4;
+
+    // Number of nodes after a tower under which the next one is lowered
+    private static final int MIN_GAP = 2;
+
+    // Head and tail of the level 0
+    final Node head = new Node(Integer.MIN_VALUE, null);
+    final Node tail = new Node(Integer.MAX_VALUE, null);
+
+    // Top of the index: the head item of its highest level
+    private volatile IndexNode top;
+
+    // Head items of the levels of the index, the one of the level 0 having no
+    // item on its right (only used by the maintenance)
+    private final IndexNode[] heads = new IndexNode[MAX_LEVEL + 1];
+    private int levels = 0;
+
+    // Striped counter of the elements, updated at the linearization points
+    private final LongAdder count = new LongAdder();
+
+    // Search result of each thread
+    private final ThreadLocal<Window> windows = ThreadLocal.withInitial(Window::new);
+
+    // Thread maintaining the index, null if not started
+    private Thread maintenance;
+    private volatile boolean running = false;
+
+    // Number of passes of the maintenance
+    private volatile long passes = 0;
+
+    // Passes of the maintenance that failed, and the last failure
+    private volatile long failures = 0;
+    private volatile RuntimeException failure;
+
+    public NoHotSpotSkipListSet() {
+        head.setNext(tail);
+        top = heads[0] = new IndexNode(head, null);
+    }
+
+    /**
+     * Build a set from sorted keys, with its index, and start its maintenance
+     *
+     * @param sortedKeys keys in ascending order, duplicates are ignored
+     */
+    public static NoHotSpotSkipListSet fromSorted(int[] sortedKeys) {
+        NoHotSpotSkipListSet set = new NoHotSpotSkipListSet();
+        Node last = set.head;
+        for (int key : sortedKeys) {
+            if (last != set.head && key <= last.key) {
+                if (key < last.key)
+                    throw new IllegalArgumentException("keys are not sorted: " + key + " after " + last.key);
+                continue;
+            }
+            Node node = new Node(key, set.tail);
+            last.setNext(node);
+            last = node;
+            set.count.increment();
+        }
+        set.maintain();
+        set.start();
+        return set;
+    }
+
+    /**
+     * Start the maintenance thread, if not started yet
+     */
+    public synchronized void start() {
+        if (maintenance != null)
+            return;
+        running = true;
+        maintenance = new Thread(this::maintenanceLoop, "skiplist-maintenance");
+        maintenance.setDaemon(true);
+        maintenance.start();
+    }
+
+    /**
+     * Stop the maintenance thread. The set can still be used, with an index
+     * that is not updated anymore.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (maintenance == null)
+            return;
+        maintenance.interrupt();
+        try {
+            maintenance.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        maintenance = null;
+    }
+
+    /**
+     * Number of elements, read from the striped counter: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     */
+    @Override
+    public int size() {
+        return (int) Math.max(0, count.sum());
+    }
+
+    @Override
+    public boolean add(int x) {
+        Window window = windows.get();
+        while (true) {
+            find(x, window);
+            Node pred = window.pred, curr = window.curr;
+            if (curr != tail && curr.key == x)
+                return false;
+            Node node = new Node(x, curr);
+            if (pred.casNext(curr, node)) {
+                count.increment();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(int x) {
+        Window window = windows.get();
+        find(x, window);
+        Node pred = window.pred, curr = window.curr;
+        // Never the tail: Integer.MAX_VALUE is a valid key
+        if (curr == tail || curr.key != x)
+            return false;
+        Node succ = curr.getNext();
+        while (!(succ instanceof Marker)) {
+            if (curr.mark(succ)) {
+                count.decrement();
+                // One attempt to unlink, the next searches snip it otherwise
+                pred.casNext(curr, succ);
+                return true;
+            }
+            succ = curr.getNext();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(int v) {
+        Node curr = start(v).getReference();
+        while (true) {
+            Node succ = curr.getNext();
+            // Skip the marked nodes
+            while (succ instanceof Marker) {
+                curr = ((Marker) succ).succ;
+                succ = curr.getNext();
+            }
+            if (curr.key < v)
+                curr = succ;
+            else
+                return curr != tail && curr.key == v;
+        }
+    }
+
+    /**
+     * Search of the level 0 from the start given by the index, snipping the
+     * marked nodes
+     *
+     * @param window receives the last node before the key and the first one after or equal
+     */
+    private void find(int key, Window window) {
+        retry: while (true) {
+            Node pred = start(key);
+            Node curr = pred.getReference();
+            while (true) {
+                Node succ = curr.getNext();
+                while (succ instanceof Marker) {
+                    if (!pred.casNext(curr, ((Marker) succ).succ))
+                        continue retry;
+                    curr = pred.getReference();
+                    succ = curr.getNext();
+                }
+                if (curr.key < key) {
+                    pred = curr;
+                    curr = succ;
+                } else {
+                    break;
+                }
+            }
+            window.pred = pred;
+            window.curr = curr;
+            return;
+        }
+    }
+
+    /**
+     * Go down the index to the last node before the key that is not marked
+     * (the head otherwise)
+     */
+    private Node start(int key) {
+        Node start = head;
+        IndexNode item = top;
+        while (true) {
+            IndexNode right = item.right;
+            while (right != null && right.node.key < key) {
+                item = right;
+                if (!(item.node.getNext() instanceof Marker))
+                    start = item.node;
+                right = item.right;
+            }
+            if (item.down == null)
+                return start;
+            item = item.down;
+        }
+    }
+
+    /**
+     * @return the number of levels of the index
+     */
+    int indexLevels() {
+        return top.level;
+    }
+
+    /**
+     * @return the number of passes of the maintenance so far
+     */
+    long passes() {
+        return passes;
+    }
+
+    /**
+     * @return the number of passes of the maintenance that failed so far
+     */
+    long failures() {
+        return failures;
+    }
+
+    /**
+     * @return the last exception of the maintenance, null if none
+     */
+    RuntimeException failure() {
+        return failure;
+    }
+
+    private void maintenanceLoop() {
+        while (running) {
+            long start = System.nanoTime();
+            // A failed pass is reported, and the next one rebuilds the index from the level 0
+            try {
+                maintain();
+            } catch (RuntimeException e) {
+                failure = e;
+                if (failures++ == 0)
+                    e.printStackTrace();
+            }
+            // Rest as long as the pass took, to leave at least half of a core to the operations
+            long pause = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One pass of maintenance over every level of the index, from the bottom.
+     * Only called by the maintenance thread, or before it starts.
+     */
+    void maintain() {
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            if (level > levels) {
+                // Add a level above a top level with enough towers
+                if (level > 1 && countItems(heads[level - 1]) < 2 * STRIDE)
+                    break;
+                heads[level] = new IndexNode(head, level > 1 ? heads[level - 1] : null, level);
+                levels = level;
+            }
+            maintainLevel(level);
+        }
+        // Remove the empty levels at the top
+        while (levels > 0 && heads[levels].right == null) {
+            heads[levels] = null;
+            levels--;
+        }
+        top = heads[levels];
+        passes++;
+    }
+
+    private static int countItems(IndexNode head) {
+        int items = 0;
+        for (IndexNode item = head.right; item != null && items < 2 * STRIDE; item = item.right)
+            items++;
+        return items;
+    }
+
+    /**
+     * Walk the level under the given one (the level 0 for the level 1), and
+     * update the towers of the level, as the only writer of its links
+     */
+    private void maintainLevel(int level) {
+        IndexNode last = heads[level];
+        IndexNode next = last.right;
+        int gap = 0;
+
+        // Elements of the level below: nodes for the level 1, items otherwise
+        Node node = head.getReference();
+        IndexNode below = level > 1 ? heads[level - 1].right : null;
+        while (level > 1 ? below != null : node != tail) {
+            Node current = level > 1 ? below.node : node;
+            boolean removed = current.getNext() instanceof Marker;
+
+            // Remove the towers of the elements that are not below anymore
+            while (next != null && (next.node.key < current.key
+                    || (next.node.key == current.key && !isAbove(next, current, below)))) {
+                next = next.right;
+                last.right = next;
+            }
+
+            if (next != null && isAbove(next, current, below)) {
+                if (removed || gap < MIN_GAP) {
+                    // Lower the tower
+                    next = next.right;
+                    last.right = next;
+                    gap++;
+                } else {
+                    last = next;
+                    next = next.right;
+                    gap = 0;
+                }
+            } else if (!removed && ++gap >= STRIDE) {
+                // Raise the element: published by the write of last.right
+                IndexNode item = new IndexNode(current, below, level);
+                item.right = next;
+                last.right = item;
+                last = item;
+                gap = 0;
+            }
+
+            if (level > 1)
+                below = below.right;
+            else
+                node = node.getReference();
+        }
+        // Towers after the last element below
+        last.right = null;
+    }
+
+    /**
+     * @return true if the item is the tower of the element below
+     */
+    private static boolean isAbove(IndexNode item, Node node, IndexNode below) {
+        return below != null ? item.down == below : item.node == node;
+    }
+
+    /**
+     * Search result: the last node before a key, and the first after or equal
+     */
+    private static final class Window {
+        Node pred;
+        Node curr;
+    }
+
+    /**
+     * Item of the index, above a node of the level 0. Only written by the
+     * maintenance thread, read by the searches.
+     */
+    static final class IndexNode {
+        final Node node;
+        // Item of the level below, null at the level 1
+        final IndexNode down;
+        final int level;
+        volatile IndexNode right;
+
+        IndexNode(Node node, IndexNode down) {
+            this(node, down, 0);
+        }
+
+        IndexNode(Node node, IndexNode down, int level) {
+            this.node = node;
+            this.down = down;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Node of the level 0. A marked node has a Marker as next, holding its
+     * frozen successor.
+     */
+    static class Node {
+        static final VarHandle NEXT;
+        static {
+            try {
+                NEXT = MethodHandles.lookup().findVarHandle(Node.class, "next", Node.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final int key;
+        private volatile Node next;
+
+        Node(int key, Node next) {
+            this.key = key;
+            this.next = next;
+        }
+
+        /**
+         * @return the next entry, a Marker if the node is marked
+         */
+        Node getNext() {
+            return next;
+        }
+
+        /**
+         * @return the next node, whether the node is marked or not
+         */
+        Node getReference() {
+            Node succ = next;
+            return succ instanceof Marker ? ((Marker) succ).succ : succ;
+        }
+
+        void setNext(Node succ) {
+            next = succ;
+        }
+
+        /**
+         * CAS of the next node, failing if the node is marked
+         */
+        boolean casNext(Node expected, Node succ) {
+            return NEXT.compareAndSet(this, expected, succ);
+        }
+
+        boolean mark(Node succ) {
+            return NEXT.compareAndSet(this, succ, new Marker(succ));
+        }
+    }
+
+    /**
+     * Next entry of a marked node
+     */
+    static final class Marker extends Node {
+        final Node succ;
+
+        Marker(Node succ) {
+            super(0, null);
+            this.succ = succ;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Concurrent open-addressing hash index, from an int key to the node of the
+ * level 0 of an IntLockfreeSkipListSet, with linear probing.
+ *
+ * A slot holds a node, whose key is the one of the slot: there is no array of
+ * keys. A slot is empty (null) until a node is set in it, and then never
+ * empty again: a removed node is replaced by TOMBSTONE, and a stale node
+ * (marked) may stay. publish takes the first tombstone, stale or empty slot
+ * of the probes, so the slots of the removed keys are reused by the next
+ * ones; lookup skips the slots of the other keys until an empty slot.
+ *
+ * The node is indexed after the CAS that links it, so a key without an indexed
+ * node may already be in the set: lookup only answers for an indexed unmarked
+ * node, in the set when its mark is read. Otherwise, the set must be searched.
+ *
+ * The table does not grow: when a key finds no slot to take within
+ * MAX_PROBES, it is not indexed.
+ */
+public class NodeHashIndex {
+    // Node of the slots whose node was removed: taken by publish, skipped by lookup
+    private static final IntLockfreeSkipListSet.Node TOMBSTONE = new IntLockfreeSkipListSet.Node(0, 0);
+
+    // Slots probed at most for a key
+    private static final int MAX_PROBES = 64;
+
+    // Results of lookup
+    static final int PRESENT = 1;
+    static final int UNKNOWN = 2;
+
+    private static final VarHandle NODES = MethodHandles.arrayElementVarHandle(IntLockfreeSkipListSet.Node[].class);
+
+    private final IntLockfreeSkipListSet.Node[] nodes;
+    private final int mask;
+
+    /**
+     * @param expectedElements number of distinct keys to index, the table
+     *                         having at least 1.5 slot by key
+     */
+    public NodeHashIndex(int expectedElements) {
+        int slots = Integer.highestOneBit(Math.max(16, expectedElements + expectedElements / 2 - 1) << 1);
+        if (slots <= 0)
+            throw new IllegalArgumentException("Too many expected elements: " + expectedElements);
+        this.nodes = new IntLockfreeSkipListSet.Node[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Index a node that has just been linked at the level 0, in the first slot
+     * of its probes that is empty, a tombstone or stale
+     */
+    public void publish(int key, IntLockfreeSkipListSet.Node node) {
+        int index = hash(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            IntLockfreeSkipListSet.Node current = (IntLockfreeSkipListSet.Node) NODES.getVolatile(nodes, index);
+            while (current == null || current == TOMBSTONE || isMarked(current)) {
+                if (NODES.compareAndSet(nodes, index, current, node))
+                    return;
+                // Taken meanwhile, maybe by another key
+                current = (IntLockfreeSkipListSet.Node) NODES.getVolatile(nodes, index);
+            }
+            // Already indexed, or another unmarked node of the key is linked: this one is already removed
+            if (current == node || current.key == key)
+                return;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove a node that has just been marked at the level 0, if it is still
+     * indexed, leaving a tombstone in its slot
+     */
+    public void unpublish(int key, IntLockfreeSkipListSet.Node node) {
+        int index = hash(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            IntLockfreeSkipListSet.Node current = (IntLockfreeSkipListSet.Node) NODES.getVolatile(nodes, index);
+            if (current == null)
+                return;
+            if (current == node) {
+                NODES.compareAndSet(nodes, index, node, TOMBSTONE);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @return PRESENT if the key has an unmarked indexed node, UNKNOWN if not:
+     *         a node linked but not indexed yet, or marked while another node
+     *         of the key is linked, may be in the set
+     */
+    public int lookup(int key) {
+        int index = hash(key) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            IntLockfreeSkipListSet.Node node = (IntLockfreeSkipListSet.Node) NODES.getVolatile(nodes, index);
+            if (node == null)
+                return UNKNOWN;
+            if (node != TOMBSTONE && node.key == key && !isMarked(node))
+                return PRESENT;
+            index = (index + 1) & mask;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return bytes of the table
+     */
+    public long memoryBytes() {
+        // A compressed reference by slot
+        return nodes.length * 4L;
+    }
+
+    private static boolean isMarked(IntLockfreeSkipListSet.Node node) {
+        return node.getNext(0) instanceof IntLockfreeSkipListSet.Marker;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
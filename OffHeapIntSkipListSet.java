@@ -0,0 +1,505 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Code from H&S, with the nodes stored off-heap.
+ *
+ * Same algorithm as IntLockfreeSkipListSet, but a node is a record of ints in
+ * direct buffers (the arena): its key, its top level, and its next reference
+ * of each level. A reference is the address of a node (its index in ints)
+ * shifted by one, with the mark in the lowest bit, updated by CAS through a
+ * VarHandle view of the buffers. The heap only holds the buffers.
+ *
+ * The keys of the head and of the tail (Integer.MIN_VALUE and
+ * Integer.MAX_VALUE) can be in the set too: the searches stop at the tail, and
+ * only match the key of a node that is not the tail (the head is never matched,
+ * as the searches start after it).
+ *
+ * The record of a removed node is retired once unlinked, and reused through the
+ * free lists of its thread when no running operation can still read it (epoch
+ * based reclamation). The arena is released when the set is garbage collected.
+ */
+public class OffHeapIntSkipListSet implements ConcurrentIntSet {
+    // Hard cap of the levels, enough for 4^16 elements with P = 0.75
+    static final int MAX_LEVEL = 16;
+
+    // probability for randomLevel method (probability of haaving a 0)
+    private static final double P = 0.75;
+
+    // Offsets of the fields in a record, in ints
+    private static final int KEY = 0;
+    private static final int HEIGHT = 1;
+    private static final int NEXT = 2;
+
+    // Size of a buffer of the arena, in ints (16 MB)
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    // Addresses are shifted by one in the references: 2^30 ints at most
+    private static final int MAX_CHUNKS = 1 << (30 - CHUNK_SHIFT);
+
+    // Size of the blocks that the threads take from the arena, in ints
+    private static final int BLOCK_SIZE = 1 << 14;
+
+    // Epoch announced by a thread out of any operation
+    private static final long QUIESCENT = -1;
+
+    // Number of retired records between two attempts to advance the epoch
+    private static final int ADVANCE_PERIOD = 64;
+
+    // Access to the ints of the buffers, as volatile for the next references
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+
+    // Access to topLevel, to raise it, to epoch, to advance it, and to allocated, to take blocks
+    private static final VarHandle TOP_LEVEL;
+    private static final VarHandle EPOCH;
+    private static final VarHandle ALLOCATED;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TOP_LEVEL = lookup.findVarHandle(OffHeapIntSkipListSet.class, "topLevel", int.class);
+            EPOCH = lookup.findVarHandle(OffHeapIntSkipListSet.class, "epoch", long.class);
+            ALLOCATED = lookup.findVarHandle(OffHeapIntSkipListSet.class, "allocated", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Buffers of the arena, created when the blocks reach them
+    private final ByteBuffer[] chunks = new ByteBuffer[MAX_CHUNKS];
+
+    // Number of buffers created
+    private int chunkCount = 0;
+
+    // Ints of the arena taken by the threads
+    private volatile long allocated = 0;
+
+    // Highest level that may be populated, where the searches start
+    private volatile int topLevel = 0;
+
+    // Global epoch, advanced when every running operation has seen it
+    private volatile long epoch = 0;
+
+    // States of the threads that used the set
+    private volatile ThreadState[] threads = new ThreadState[0];
+
+    // Search buffers, blocks and free lists of each thread
+    private final ThreadLocal<ThreadState> states = ThreadLocal.withInitial(this::register);
+
+    // Addresses of the head and of the tail
+    final int head;
+    final int tail;
+
+    // Striped counter of the elements, updated at the linearization points, null if not counted
+    private final LongAdder count;
+
+    // Generator of the levels, local to each thread
+    private static final LevelGenerator LEVELS = new LevelGenerator(P, MAX_LEVEL);
+
+    /**
+     * @return a level between 0 and MAX_LEVEL, following a geometric distribution of P
+     */
+    public static int randomLevel() {
+        return LEVELS.randomLevel();
+    }
+
+    public OffHeapIntSkipListSet() {
+        this(true);
+    }
+
+    /**
+     * @param countSize count the elements for size(), false to avoid its cost
+     */
+    public OffHeapIntSkipListSet(boolean countSize) {
+        this.count = countSize ? new LongAdder() : null;
+        ThreadState state = states.get();
+        head = allocate(state, MAX_LEVEL, Integer.MIN_VALUE);
+        tail = allocate(state, MAX_LEVEL, Integer.MAX_VALUE);
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            setNext(head, level, tail << 1);
+            setNext(tail, level, tail << 1);
+        }
+    }
+
+    /**
+     * Number of elements, read from the striped counter: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     *
+     * @throws UnsupportedOperationException if the size is not counted
+     */
+    @Override
+    public int size() {
+        if (count == null)
+            throw new UnsupportedOperationException("size is not counted by this set");
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * @return true if there is no unmarked node at the level 0
+     */
+    public boolean isEmpty() {
+        ThreadState state = enter();
+        try {
+            int node = getNext(head, 0) >>> 1;
+            while (node != tail && (getNext(node, 0) & 1) != 0)
+                node = getNext(node, 0) >>> 1;
+            return node == tail;
+        } finally {
+            exit(state);
+        }
+    }
+
+    /**
+     * @return bytes of the buffers of the arena, out of the heap
+     */
+    public long offHeapBytes() {
+        synchronized (chunks) {
+            return (long) chunkCount << (CHUNK_SHIFT + 2);
+        }
+    }
+
+    /**
+     * Bound a random level to one more than the current top level, and raise
+     * the top level if needed
+     */
+    private int boundLevel(int level) {
+        int top = topLevel;
+        if (level <= top)
+            return level;
+        level = top + 1;
+        TOP_LEVEL.compareAndSet(this, top, level);
+        return level;
+    }
+
+    @Override
+    public boolean add(int x) {
+        ThreadState state = enter();
+        try {
+            return add(x, state);
+        } finally {
+            exit(state);
+        }
+    }
+
+    private boolean add(int x, ThreadState state) {
+        int topLevel = boundLevel(randomLevel());
+        int[] preds = state.preds;
+        int[] succs = state.succs;
+        int newNode = -1;
+
+        while (true) {
+            if (find(x, preds, succs, false)) {
+                // Never linked: the record can be reused right away
+                if (newNode >= 0)
+                    free(state, newNode);
+                return false;
+            }
+            if (newNode < 0)
+                newNode = allocate(state, topLevel, x);
+            for (int level = 0; level <= topLevel; level++)
+                setNext(newNode, level, succs[level] << 1);
+
+            if (!casNext(preds[0], 0, succs[0] << 1, newNode << 1))
+                continue;
+            if (count != null)
+                count.increment();
+
+            for (int level = 1; level <= topLevel; level++) {
+                while (true) {
+                    int pred = preds[level];
+                    int succ = succs[level];
+                    // Removed meanwhile: the upper levels are not linked anymore
+                    int next = getNext(newNode, level);
+                    if ((next & 1) != 0 || (next != succ << 1 && !casNext(newNode, level, next, succ << 1)))
+                        return true;
+                    if (casNext(pred, level, succ << 1, newNode << 1)) {
+                        // Marked while linked: the remover may have unlinked before, unlink it again
+                        if ((getNext(newNode, level) & 1) != 0) {
+                            find(x, preds, succs, true);
+                            return true;
+                        }
+                        break;
+                    }
+                    find(x, preds, succs, false);
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean remove(int x) {
+        ThreadState state = enter();
+        try {
+            return remove(x, state);
+        } finally {
+            exit(state);
+        }
+    }
+
+    private boolean remove(int x, ThreadState state) {
+        int[] preds = state.preds;
+        int[] succs = state.succs;
+        if (!find(x, preds, succs, false))
+            return false;
+
+        int node = succs[0];
+        for (int level = getInt(node + HEIGHT); level >= 1; level--) {
+            int succ = getNext(node, level);
+            while ((succ & 1) == 0) {
+                casNext(node, level, succ, succ | 1);
+                succ = getNext(node, level);
+            }
+        }
+        int succ = getNext(node, 0);
+        while ((succ & 1) == 0) {
+            if (casNext(node, 0, succ, succ | 1)) {
+                if (count != null)
+                    count.decrement();
+                // Unlinked from every level, the record can be retired
+                find(x, preds, succs, true);
+                retire(state, node);
+                return true;
+            }
+            succ = getNext(node, 0);
+        }
+        return false;
+    }
+
+    /**
+     * Search of the key from the head, snipping the marked nodes on the way
+     *
+     * @param unlink go through the unmarked nodes of the key too, to snip the
+     *               marked ones that may be after them
+     * @return true if the key is found, when not unlinking
+     */
+    private boolean find(int key, int[] preds, int[] succs, boolean unlink) {
+        retry: while (true) {
+            int pred = head;
+            int curr = -1;
+            for (int level = topLevel; level >= 0; level--) {
+                curr = getNext(pred, level) >>> 1;
+                while (true) {
+                    int succ = getNext(curr, level);
+                    while ((succ & 1) != 0) {
+                        if (!casNext(pred, level, curr << 1, succ & ~1))
+                            continue retry;
+                        curr = getNext(pred, level) >>> 1;
+                        succ = getNext(curr, level);
+                    }
+                    int currKey = getInt(curr + KEY);
+                    if (currKey < key || (unlink && currKey == key && curr != tail)) {
+                        pred = curr;
+                        curr = succ >>> 1;
+                    } else {
+                        break;
+                    }
+                }
+                preds[level] = pred;
+                succs[level] = curr;
+            }
+            return curr != tail && getInt(curr + KEY) == key;
+        }
+    }
+
+    @Override
+    public boolean contains(int v) {
+        ThreadState state = enter();
+        try {
+            int pred = head, curr = -1;
+            for (int level = topLevel; level >= 0; level--) {
+                curr = getNext(pred, level) >>> 1;
+                while (true) {
+                    int succ = getNext(curr, level);
+                    // Skip the marked nodes: pred may be marked too, and never be updated
+                    while ((succ & 1) != 0) {
+                        curr = succ >>> 1;
+                        succ = getNext(curr, level);
+                    }
+                    if (getInt(curr + KEY) < v) {
+                        pred = curr;
+                        curr = succ >>> 1;
+                    } else {
+                        break;
+                    }
+                }
+            }
+            return curr != tail && getInt(curr + KEY) == v;
+        } finally {
+            exit(state);
+        }
+    }
+
+    /**
+     * @return the highest level that may be populated
+     */
+    int topLevel() {
+        return topLevel;
+    }
+
+    // Access to the records
+
+    private int getInt(int address) {
+        return (int) INTS.get(chunks[address >>> CHUNK_SHIFT], (address & CHUNK_MASK) << 2);
+    }
+
+    private void setInt(int address, int value) {
+        INTS.set(chunks[address >>> CHUNK_SHIFT], (address & CHUNK_MASK) << 2, value);
+    }
+
+    /**
+     * @return the next reference of the node at the level, with its mark
+     */
+    private int getNext(int node, int level) {
+        int address = node + NEXT + level;
+        return (int) INTS.getVolatile(chunks[address >>> CHUNK_SHIFT], (address & CHUNK_MASK) << 2);
+    }
+
+    /**
+     * Plain write, for a node that is not linked yet
+     */
+    private void setNext(int node, int level, int reference) {
+        setInt(node + NEXT + level, reference);
+    }
+
+    private boolean casNext(int node, int level, int expected, int reference) {
+        int address = node + NEXT + level;
+        return INTS.compareAndSet(chunks[address >>> CHUNK_SHIFT], (address & CHUNK_MASK) << 2, expected,
+                reference);
+    }
+
+    // Allocation and reclamation of the records
+
+    /**
+     * @return the address of a record for a node of the given top level, from
+     *         the free list of the thread, or else from its block
+     */
+    private int allocate(ThreadState state, int height, int key) {
+        int node;
+        if (state.freeCount[height] > 0) {
+            node = state.free[height][--state.freeCount[height]];
+        } else {
+            int size = NEXT + height + 1;
+            if (state.blockNext + size > state.blockEnd)
+                takeBlock(state);
+            node = state.blockNext;
+            state.blockNext += size;
+        }
+        setInt(node + KEY, key);
+        setInt(node + HEIGHT, height);
+        return node;
+    }
+
+    /**
+     * Give a new block of the arena to the thread, creating its buffer if needed.
+     * The blocks do not cross the buffers.
+     */
+    private void takeBlock(ThreadState state) {
+        long start = (long) ALLOCATED.getAndAdd(this, (long) BLOCK_SIZE);
+        int chunk = (int) (start >>> CHUNK_SHIFT);
+        if (chunk >= MAX_CHUNKS)
+            throw new IllegalStateException("Off-heap arena is full");
+        synchronized (chunks) {
+            while (chunkCount <= chunk) {
+                chunks[chunkCount] = ByteBuffer.allocateDirect(4 << CHUNK_SHIFT);
+                chunkCount++;
+            }
+        }
+        state.blockNext = (int) start;
+        state.blockEnd = (int) start + BLOCK_SIZE;
+    }
+
+    private void free(ThreadState state, int node) {
+        int height = getInt(node + HEIGHT);
+        int[] free = state.free[height];
+        if (state.freeCount[height] == free.length)
+            state.free[height] = free = Arrays.copyOf(free, free.length * 2);
+        free[state.freeCount[height]++] = node;
+    }
+
+    /**
+     * Keep an unlinked node until the running operations, that may read it, end
+     */
+    private void retire(ThreadState state, int node) {
+        long current = epoch;
+        int bucket = (int) (current % 3);
+        // The bucket holds the nodes retired 3 epochs ago or more: no operation can read them
+        if (state.limboEpoch[bucket] != current) {
+            for (int i = 0; i < state.limboCount[bucket]; i++)
+                free(state, state.limbo[bucket][i]);
+            state.limboCount[bucket] = 0;
+            state.limboEpoch[bucket] = current;
+        }
+        int[] limbo = state.limbo[bucket];
+        if (state.limboCount[bucket] == limbo.length)
+            state.limbo[bucket] = limbo = Arrays.copyOf(limbo, limbo.length * 2);
+        limbo[state.limboCount[bucket]++] = node;
+
+        if (++state.retired >= ADVANCE_PERIOD) {
+            state.retired = 0;
+            advanceEpoch();
+        }
+    }
+
+    /**
+     * Advance the epoch if every running operation started in the current one
+     */
+    private void advanceEpoch() {
+        long current = epoch;
+        for (ThreadState state : threads) {
+            long announced = state.announced;
+            if (announced != QUIESCENT && announced != current)
+                return;
+        }
+        EPOCH.compareAndSet(this, current, current + 1);
+    }
+
+    private ThreadState enter() {
+        ThreadState state = states.get();
+        state.announced = epoch;
+        return state;
+    }
+
+    private void exit(ThreadState state) {
+        state.announced = QUIESCENT;
+    }
+
+    private synchronized ThreadState register() {
+        ThreadState state = new ThreadState();
+        ThreadState[] registered = Arrays.copyOf(threads, threads.length + 1);
+        registered[threads.length] = state;
+        threads = registered;
+        return state;
+    }
+
+    /**
+     * State of a thread: its search buffers, its block of the arena, its free
+     * records by top level, and its records retired in the last three epochs
+     */
+    private static final class ThreadState {
+        // Epoch seen by the running operation, QUIESCENT out of the operations
+        volatile long announced = QUIESCENT;
+
+        final int[] preds = new int[MAX_LEVEL + 1];
+        final int[] succs = new int[MAX_LEVEL + 1];
+
+        // Next free address of the block, and its end
+        int blockNext;
+        int blockEnd;
+
+        final int[][] free = new int[MAX_LEVEL + 1][16];
+        final int[] freeCount = new int[MAX_LEVEL + 1];
+
+        final int[][] limbo = new int[3][16];
+        final int[] limboCount = new int[3];
+        final long[] limboEpoch = { QUIESCENT, QUIESCENT, QUIESCENT };
+
+        // Retired records since the last attempt to advance the epoch
+        int retired;
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Set of int keys split into range shards, each one its own
+ * IntLockfreeSkipListSet: an operation is routed to the shard of its key, so
+ * the threads working on different ranges share no node, not even a head.
+ *
+ * The shards hold consecutive ranges, so the ordered iteration and the range
+ * scans concatenate the iterators of the shards.
+ *
+ * Each shard counts its operations. rebalance() splits the shards that had
+ * more than HOT_FACTOR times the average of the operations since the last
+ * rebalance at their median key. It replaces the layout of the shards, and
+ * must not run during operations.
+ */
+public class ShardedSkipListSet implements ConcurrentIntSet {
+    // A shard with more operations than this factor times the average is split
+    static final int HOT_FACTOR = 2;
+
+    // Shards and their bounds, replaced as a whole by rebalance
+    private volatile Layout layout;
+
+    // Count the operations of each shard, for rebalance
+    private final boolean countOperations;
+
+    /**
+     * @param shardCount number of shards, splitting [minKey, maxKey) in equal
+     *                   ranges: the keys before go to the first shard, the
+     *                   keys after to the last one
+     */
+    public ShardedSkipListSet(int shardCount, int minKey, int maxKey) {
+        this(shardCount, minKey, maxKey, false);
+    }
+
+    /**
+     * @param shardCount      number of shards, splitting [minKey, maxKey) in
+     *                        equal ranges: the keys before go to the first
+     *                        shard, the keys after to the last one
+     * @param countOperations count the operations of each shard, needed by rebalance
+     */
+    public ShardedSkipListSet(int shardCount, int minKey, int maxKey, boolean countOperations) {
+        this(bounds(shardCount, minKey, maxKey), null, countOperations);
+    }
+
+    private ShardedSkipListSet(int[] bounds, int[] sortedKeys, boolean countOperations) {
+        this.countOperations = countOperations;
+        IntLockfreeSkipListSet[] shards = new IntLockfreeSkipListSet[bounds.length];
+        int from = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            if (sortedKeys == null) {
+                shards[i] = new IntLockfreeSkipListSet();
+                continue;
+            }
+            // Keys of the shard: up to the bound of the next one
+            int to = from;
+            while (to < sortedKeys.length && (i == bounds.length - 1 || sortedKeys[to] < bounds[i + 1]))
+                to++;
+            shards[i] = IntLockfreeSkipListSet.fromSorted(Arrays.copyOfRange(sortedKeys, from, to));
+            from = to;
+        }
+        this.layout = new Layout(bounds, shards, countOperations);
+    }
+
+    /**
+     * Build a set from sorted keys, each shard with IntLockfreeSkipListSet.fromSorted
+     *
+     * @param sortedKeys keys in ascending order, duplicates are ignored
+     * @param shardCount number of shards, splitting [minKey, maxKey) in equal ranges
+     * @param countOperations count the operations of each shard, needed by rebalance
+     * @return the set, to publish safely as any object built by a single thread
+     */
+    public static ShardedSkipListSet fromSorted(int[] sortedKeys, int shardCount, int minKey, int maxKey,
+            boolean countOperations) {
+        return new ShardedSkipListSet(bounds(shardCount, minKey, maxKey), sortedKeys, countOperations);
+    }
+
+    /**
+     * @return the lowest key of each shard, Integer.MIN_VALUE for the first one
+     */
+    private static int[] bounds(int shardCount, int minKey, int maxKey) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        if ((long) maxKey - minKey < shardCount)
+            throw new IllegalArgumentException("[minKey, maxKey) must hold at least one key by shard");
+        int[] bounds = new int[shardCount];
+        bounds[0] = Integer.MIN_VALUE;
+        for (int i = 1; i < shardCount; i++)
+            bounds[i] = (int) (minKey + ((long) maxKey - minKey) * i / shardCount);
+        return bounds;
+    }
+
+    @Override
+    public boolean add(int x) {
+        Layout current = layout;
+        int shard = current.shard(x);
+        if (current.operations != null)
+            current.operations[shard].increment();
+        return current.shards[shard].add(x);
+    }
+
+    @Override
+    public boolean remove(int x) {
+        Layout current = layout;
+        int shard = current.shard(x);
+        if (current.operations != null)
+            current.operations[shard].increment();
+        return current.shards[shard].remove(x);
+    }
+
+    @Override
+    public boolean contains(int x) {
+        Layout current = layout;
+        int shard = current.shard(x);
+        if (current.operations != null)
+            current.operations[shard].increment();
+        return current.shards[shard].contains(x);
+    }
+
+    /**
+     * Number of elements, sum of the sizes of the shards: exact when there is
+     * no concurrent add or remove, approximate otherwise
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (IntLockfreeSkipListSet shard : layout.shards)
+            size += shard.size();
+        return size;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int shardCount() {
+        return layout.shards.length;
+    }
+
+    /**
+     * @return the lowest key of each shard, Integer.MIN_VALUE for the first one
+     */
+    public int[] bounds() {
+        return layout.bounds.clone();
+    }
+
+    /**
+     * @return the number of operations of each shard since the last rebalance
+     */
+    public long[] operationCounts() {
+        Layout current = layout;
+        long[] counts = new long[current.shards.length];
+        if (current.operations != null) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = current.operations[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Weakly consistent ascending iterator of all the keys, shard by shard
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return iterator(Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Weakly consistent ascending iterator of the keys from fromKey
+     * (inclusive) to toKey (exclusive), over the shards of the range
+     */
+    public PrimitiveIterator.OfInt iterator(int fromKey, int toKey) {
+        return iterator(fromKey, toKey, false);
+    }
+
+    /**
+     * @param toEnd ignore toKey, and iterate to the last key, Integer.MAX_VALUE included
+     */
+    private PrimitiveIterator.OfInt iterator(int fromKey, int toKey, boolean toEnd) {
+        Layout current = layout;
+        int first = current.shard(fromKey);
+        int last = toEnd ? current.shards.length - 1
+                : toKey == Integer.MIN_VALUE ? first : current.shard(toKey - 1);
+        return new PrimitiveIterator.OfInt() {
+            private int shard = first;
+            private PrimitiveIterator.OfInt keys = keys(first, fromKey);
+
+            /**
+             * @return the iterator of the keys of the shard, from the given key
+             */
+            private PrimitiveIterator.OfInt keys(int shard, int fromKey) {
+                IntLockfreeSkipListSet set = current.shards[shard];
+                return toEnd ? set.iterator(fromKey) : set.iterator(fromKey, toKey);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (!keys.hasNext()) {
+                    if (shard >= last)
+                        return false;
+                    shard++;
+                    keys = keys(shard, current.bounds[shard]);
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return keys.nextInt();
+            }
+        };
+    }
+
+    /**
+     * Split each hot shard at its median key, in two shards built from its
+     * keys, and reset the operation counters. Not thread-safe: no operation
+     * must run meanwhile.
+     *
+     * @return the number of shards split
+     */
+    public int rebalance() {
+        if (!countOperations)
+            throw new IllegalStateException("the operations of the shards are not counted");
+        Layout current = layout;
+        long[] counts = operationCounts();
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        long threshold = HOT_FACTOR * total / counts.length;
+
+        List<Integer> bounds = new ArrayList<>();
+        List<IntLockfreeSkipListSet> shards = new ArrayList<>();
+        int split = 0;
+        for (int i = 0; i < counts.length; i++) {
+            IntLockfreeSkipListSet shard = current.shards[i];
+            int[] keys = keys(shard);
+            if (counts[i] > threshold && keys.length >= 2) {
+                int median = keys.length / 2;
+                bounds.add(current.bounds[i]);
+                shards.add(IntLockfreeSkipListSet.fromSorted(Arrays.copyOfRange(keys, 0, median)));
+                bounds.add(keys[median]);
+                shards.add(IntLockfreeSkipListSet.fromSorted(Arrays.copyOfRange(keys, median, keys.length)));
+                split++;
+            } else {
+                bounds.add(current.bounds[i]);
+                shards.add(shard);
+            }
+        }
+
+        int[] newBounds = new int[bounds.size()];
+        for (int i = 0; i < newBounds.length; i++)
+            newBounds[i] = bounds.get(i);
+        layout = new Layout(newBounds, shards.toArray(new IntLockfreeSkipListSet[0]), true);
+        return split;
+    }
+
+    private static int[] keys(IntLockfreeSkipListSet shard) {
+        int[] keys = new int[Math.max(16, shard.size())];
+        int count = 0;
+        for (PrimitiveIterator.OfInt it = shard.iterator(Integer.MIN_VALUE); it.hasNext();) {
+            if (count == keys.length)
+                keys = Arrays.copyOf(keys, 2 * count);
+            keys[count++] = it.nextInt();
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Shards, their lowest keys, and their operation counters
+     */
+    private static final class Layout {
+        final int[] bounds;
+        final IntLockfreeSkipListSet[] shards;
+        // Null if the operations are not counted
+        final LongAdder[] operations;
+
+        Layout(int[] bounds, IntLockfreeSkipListSet[] shards, boolean countOperations) {
+            this.bounds = bounds;
+            this.shards = shards;
+            if (countOperations) {
+                operations = new LongAdder[shards.length];
+                for (int i = 0; i < shards.length; i++)
+                    operations[i] = new LongAdder();
+            } else {
+                operations = null;
+            }
+        }
+
+        /**
+         * @return the index of the shard of the key: the last one whose lowest key is lower or equal
+         */
+        int shard(int key) {
+            int index = Arrays.binarySearch(bounds, key);
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+}
@@ -1,4 +1,8 @@
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * Class to execute thread tests
@@ -14,8 +18,28 @@ public class ThreadedTests {
     // Limit of the random for add and remove
     double addLimit, removeLimit;
 
-    // List to test
-    private LockfreeConcurrentSkipListSet<Integer> skipListSet;
+    // Set to test
+    private ConcurrentIntSet set;
+
+    // Set is an IntLockfreeSkipListSet, built from the sorted keys by the fill methods
+    private final boolean primitive;
+
+    // Operations of the streams
+    static final byte ADD = 0;
+    static final byte REMOVE = 1;
+    static final byte CONTAINS = 2;
+
+    // Latencies of the runs of streams, by operation (ADD, REMOVE, CONTAINS), null if not recorded
+    private LatencyHistogram[] latencies;
+
+    // Positions of the threads in their streams, where the next timed run starts
+    private int[] positions;
+
+    // Operations between two reads of the clock in a timed run (a power of two)
+    private static final int CLOCK_PERIOD = 64;
+
+    // Results of the operations of the timed runs, read so that they are not eliminated
+    static volatile long sink;
 
     /**
      * 
@@ -25,6 +49,40 @@ public class ThreadedTests {
      * @param removePercentage percentage of remove
      */
     public ThreadedTests(int threadCount, int operationCount, int addPercentage, int removePercentage) {
+        this(threadCount, operationCount, addPercentage, removePercentage, false);
+    }
+
+    /**
+     * 
+     * @param threadCount number of threads to use
+     * @param operationCount number of operations
+     * @param addPercentage percentage of add
+     * @param removePercentage percentage of remove
+     * @param primitive use the IntLockfreeSkipListSet instead of the generic one
+     */
+    public ThreadedTests(int threadCount, int operationCount, int addPercentage, int removePercentage,
+            boolean primitive) {
+        this(threadCount, operationCount, addPercentage, removePercentage,
+                primitive ? new IntLockfreeSkipListSet()
+                        : ConcurrentIntSet.of(new LockfreeConcurrentSkipListSet<Integer>()),
+                primitive);
+    }
+
+    /**
+     * 
+     * @param threadCount number of threads to use
+     * @param operationCount number of operations
+     * @param addPercentage percentage of add
+     * @param removePercentage percentage of remove
+     * @param set engine to test, filled by adds
+     */
+    public ThreadedTests(int threadCount, int operationCount, int addPercentage, int removePercentage,
+            ConcurrentIntSet set) {
+        this(threadCount, operationCount, addPercentage, removePercentage, set, false);
+    }
+
+    private ThreadedTests(int threadCount, int operationCount, int addPercentage, int removePercentage,
+            ConcurrentIntSet set, boolean primitive) {
         this.threadCount = threadCount;
         this.operationCount = operationCount;
 
@@ -39,7 +97,53 @@ public class ThreadedTests {
         assert (removeCount >= 0);
         assert (containsCount >= 0);
 
-        this.skipListSet = new LockfreeConcurrentSkipListSet<>();
+        this.set = set;
+        this.primitive = primitive;
+    }
+
+    /**
+     * Names of the engines of newEngine
+     */
+    static final String[] ENGINES = { "lockfree", "int", "off-heap", "no-hot-spot", "flat-combining", "sharded",
+            "lazy", "linear", "locked", "jdk-skiplist", "jdk-hash" };
+
+    /**
+     * @param name one of ENGINES
+     * @return a new empty set of the engine; no-hot-spot has its maintenance
+     *         started, and must be closed
+     * @throws IllegalArgumentException if the engine is unknown
+     */
+    static ConcurrentIntSet newEngine(String name) {
+        switch (name) {
+        case "lockfree":
+            return ConcurrentIntSet.of(new LockfreeConcurrentSkipListSet<Integer>());
+        case "int":
+            return new IntLockfreeSkipListSet();
+        case "off-heap":
+            return new OffHeapIntSkipListSet();
+        case "no-hot-spot":
+            NoHotSpotSkipListSet noHotSpotSet = new NoHotSpotSkipListSet();
+            noHotSpotSet.start();
+            return noHotSpotSet;
+        case "flat-combining":
+            return new FlatCombiningSkipListSet();
+        case "sharded":
+            // Ranges of the populations
+            return new ShardedSkipListSet(16, 0, (int) 1e7);
+        case "lazy":
+            return ConcurrentIntSet.of(new LazySkipListSet<Integer>());
+        case "linear":
+            return ConcurrentIntSet.of(new LinearSkipListSet<Integer>());
+        case "locked":
+            return ConcurrentIntSet.of(new LockedSkipListSet<Integer>());
+        case "jdk-skiplist":
+            return ConcurrentIntSet.of(new ConcurrentSkipListSet<Integer>());
+        case "jdk-hash":
+            return ConcurrentIntSet.of(ConcurrentHashMap.<Integer>newKeySet());
+        default:
+            throw new IllegalArgumentException("Unknown engine " + name + ", expected one of "
+                    + String.join(", ", ENGINES));
+        }
     }
 
     /**
@@ -48,8 +152,17 @@ public class ThreadedTests {
      */
     public void fillUpList(int generatorType) {
         Main.Generator generator = generatorType == 0 ? new Main.FirstGenerator() : new Main.SecondGenerator();
+        if (primitive) {
+            // Built in one pass from the sorted keys
+            int[] keys = new int[(int) 1e7];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = generator.generate();
+            Arrays.sort(keys);
+            set = IntLockfreeSkipListSet.fromSorted(keys, true);
+            return;
+        }
         for(int i = 0; i < 1e7; i++){
-            skipListSet.add(generator.generate());
+            set.add(generator.generate());
         }
     }
 
@@ -58,13 +171,81 @@ public class ThreadedTests {
      * @param set population to use
      */
     public void fillUpListWithSet(Set<Integer> set){
+        if (primitive) {
+            // Built in one pass from the sorted keys
+            this.set = IntLockfreeSkipListSet.fromSorted(sorted(set), true);
+            return;
+        }
         for(Integer i : set){
-            skipListSet.add(i);
+            this.set.add(i);
         }
     }
 
+    /**
+     * Population of the threaded tests, for the sets built from sorted keys
+     * @param generator generator of the keys
+     * @return the distinct keys of 10^6 generated ones, in ascending order
+     */
+    static int[] sortedPopulation(Main.Generator generator) {
+        Set<Integer> population = new HashSet<>();
+        for (int i = 0; i < 1e6; i++)
+            population.add(generator.generate());
+        return sorted(population);
+    }
+
+    /**
+     * @return the keys of the set, in ascending order
+     */
+    private static int[] sorted(Set<Integer> set) {
+        int[] keys = new int[set.size()];
+        int index = 0;
+        for (Integer key : set)
+            keys[index++] = key;
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Record the latency of each operation of the next runs of streams, in a
+     * histogram by thread and by operation, merged at the end of each run
+     */
+    public void recordLatencies() {
+        latencies = new LatencyHistogram[] { new LatencyHistogram(), new LatencyHistogram(),
+                new LatencyHistogram() };
+    }
+
+    /**
+     * @return latencies of the runs of streams by operation (ADD, REMOVE,
+     *         CONTAINS), null if not recorded
+     */
+    public LatencyHistogram[] latencies() {
+        return latencies;
+    }
+
     public void setList(LockfreeConcurrentSkipListSet<Integer> skipListSet) {
-        this.skipListSet = skipListSet;
+        this.set = ConcurrentIntSet.of(skipListSet);
+    }
+
+    public void setList(LazySkipListSet<Integer> lazySet) {
+        this.set = ConcurrentIntSet.of(lazySet);
+    }
+
+    public void setList(ConcurrentIntSet set) {
+        this.set = set;
+    }
+
+    /**
+     * Release the resources of the set, if it has any (the maintenance
+     * thread of the no hot spot set, the log of the durable set)
+     */
+    public void close() {
+        if (set instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) set).close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -130,6 +311,228 @@ public class ThreadedTests {
         return duration;
     }
 
+    /**
+     * Generate the operations and the keys of each thread, before the run: the
+     * same counts of add, remove and contains as run(), shuffled in each thread
+     * @param generatorType 0 for uniform, 1 for normal
+     */
+    public Streams generateStreams(int generatorType) {
+        Main.Generator generator = generatorType == 0 ? new Main.FirstGenerator() : new Main.SecondGenerator();
+        SplittableRandom random = new SplittableRandom();
+        byte[][] operations = new byte[threadCount][];
+        int[][] keys = new int[threadCount][];
+        for (int i = 0; i < threadCount; i++) {
+            // Counts of the thread, as slices of the totals
+            int adds = slice(addCount, i);
+            int removes = slice(removeCount, i);
+            int length = adds + removes + slice(containsCount, i);
+            operations[i] = new byte[length];
+            keys[i] = new int[length];
+            for (int j = 0; j < operations[i].length; j++) {
+                operations[i][j] = j < adds ? ADD : j < adds + removes ? REMOVE : CONTAINS;
+                keys[i][j] = generator.generate();
+            }
+            // Fisher-Yates shuffle of the operations
+            for (int j = operations[i].length - 1; j > 0; j--) {
+                int k = random.nextInt(j + 1);
+                byte operation = operations[i][j];
+                operations[i][j] = operations[i][k];
+                operations[i][k] = operation;
+            }
+        }
+        return new Streams(operations, keys);
+    }
+
+    /**
+     * @return the part of a count done by a thread, the parts of all the threads summing up to the count
+     */
+    private int slice(int count, int thread) {
+        return (int) ((long) count * (thread + 1) / threadCount - (long) count * thread / threadCount);
+    }
+
+    /**
+     * Run the streams: the threads are started first, and released together by
+     * a barrier, so that none of them runs before the others are ready
+     * @return the duration of each thread, from the release of the barrier to its
+     *         last operation, and the duration of the run (to the end of the
+     *         last thread) in the last cell
+     */
+    public long[] runStreams(Streams streams) {
+        long[] durations = new long[threadCount + 1];
+        // Written by the last thread to reach the barrier, before it releases them
+        long[] start = new long[1];
+        CyclicBarrier barrier = new CyclicBarrier(threadCount, () -> start[0] = System.nanoTime());
+
+        StreamWorker[] workers = new StreamWorker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new StreamWorker(barrier, streams.operations[i], streams.keys[i], latencies != null);
+            workers[i].start();
+        }
+
+        // Wait for the end of every worker
+        for (int i = 0; i < threadCount; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return durations;
+            }
+            durations[i] = workers[i].end - start[0];
+            durations[threadCount] = Math.max(durations[threadCount], durations[i]);
+            if (latencies != null) {
+                for (int operation = ADD; operation <= CONTAINS; operation++)
+                    latencies[operation].add(workers[i].latencies[operation]);
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Replay the streams in a loop during a time box, each thread from where it
+     * stopped in the previous timed run. The run starts when the last thread
+     * reaches the barrier, and each thread stops itself at the deadline: with
+     * more threads than cores, the thread that starts them may only run again
+     * seconds later. The latencies are not recorded.
+     * @param nanos duration of the run
+     * @return the number of operations done, and the duration of the run, from
+     *         the release of the barrier to the end of the last thread
+     */
+    public long[] runStreams(Streams streams, long nanos) {
+        if (positions == null)
+            positions = new int[threadCount];
+        // Start and deadline, written by the last thread to reach the barrier
+        long[] window = new long[2];
+        CyclicBarrier barrier = new CyclicBarrier(threadCount, () -> {
+            window[0] = System.nanoTime();
+            window[1] = window[0] + nanos;
+        });
+
+        StreamWorker[] workers = new StreamWorker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new StreamWorker(barrier, streams.operations[i], streams.keys[i], window, positions[i]);
+            workers[i].start();
+        }
+
+        long count = 0, end = Long.MIN_VALUE;
+        for (int i = 0; i < threadCount; i++) {
+            try {
+                workers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new long[] { count, 0 };
+            }
+            positions[i] = workers[i].position;
+            count += workers[i].count;
+            end = Math.max(end, workers[i].end);
+        }
+        return new long[] { count, end - window[0] };
+    }
+
+    /**
+     * Operations and keys of each thread, generated before the run
+     */
+    public static final class Streams {
+        final byte[][] operations;
+        final int[][] keys;
+
+        Streams(byte[][] operations, int[][] keys) {
+            this.operations = operations;
+            this.keys = keys;
+        }
+
+        /**
+         * @return number of operations of a thread
+         */
+        int length(int thread) {
+            return operations[thread].length;
+        }
+    }
+
+    /**
+     * Thread executing its stream of operations on the skiplist
+     */
+    public class StreamWorker extends Thread {
+        final CyclicBarrier barrier;
+        final byte[] operations;
+        final int[] keys;
+
+        // Latencies by operation, allocated before the run, null if not recorded
+        final LatencyHistogram[] latencies;
+
+        // Start and deadline of a timed run, written by the barrier, null to run the whole stream
+        final long[] window;
+
+        // Position in the stream: where a timed run starts, then where it stopped
+        int position;
+
+        // Operations done by a timed run
+        long count;
+
+        // Time of the last operation
+        long end;
+
+        public StreamWorker(CyclicBarrier barrier, byte[] operations, int[] keys, boolean recordLatencies) {
+            this.barrier = barrier;
+            this.operations = operations;
+            this.keys = keys;
+            this.latencies = recordLatencies ? new LatencyHistogram[] { new LatencyHistogram(),
+                    new LatencyHistogram(), new LatencyHistogram() } : null;
+            this.window = null;
+        }
+
+        /**
+         * Worker of a timed run, replaying its stream in a loop from a position
+         */
+        public StreamWorker(CyclicBarrier barrier, byte[] operations, int[] keys, long[] window, int position) {
+            this.barrier = barrier;
+            this.operations = operations;
+            this.keys = keys;
+            this.latencies = null;
+            this.window = window;
+            this.position = position;
+        }
+
+        @Override
+        public void run() {
+            try {
+                barrier.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                throw new IllegalStateException("Interrupted before the start of the run", e);
+            }
+            if (window != null) {
+                long deadline = window[1];
+                long hits = 0;
+                do {
+                    if (apply(operations[position], keys[position]))
+                        hits++;
+                    if (++position == operations.length)
+                        position = 0;
+                    count++;
+                } while ((count & (CLOCK_PERIOD - 1)) != 0 || System.nanoTime() < deadline);
+                sink += hits;
+            } else if (latencies == null) {
+                for (int i = 0; i < operations.length; i++)
+                    apply(operations[i], keys[i]);
+            } else {
+                for (int i = 0; i < operations.length; i++) {
+                    long start = System.nanoTime();
+                    apply(operations[i], keys[i]);
+                    latencies[operations[i]].record(System.nanoTime() - start);
+                }
+            }
+            end = System.nanoTime();
+        }
+
+        private boolean apply(byte operation, int key) {
+            if (operation == ADD)
+                return set.add(key);
+            else if (operation == REMOVE)
+                return set.remove(key);
+            else
+                return set.contains(key);
+        }
+    }
+
     /**
      * Thread executing operation on the skiplist
      */
@@ -152,17 +555,17 @@ public class ThreadedTests {
             while (totalOp > 0) {
                 int rand = (int) (Math.random() * totalOp);
                 if (rand < addCount && addCount > 0) {
-                    skipListSet.add(generator.generate());
+                    set.add(generator.generate());
                     addCount--;
                     totalOp--;
 
                 } else if (rand < addCount + removeCount && removeCount > 0) {
-                    skipListSet.remove(generator.generate());
+                    set.remove(generator.generate());
                     removeCount--;
                     totalOp--;
 
                 } else if (containsCount > 0) {
-                    skipListSet.contains(generator.generate());
+                    set.contains(generator.generate());
                     containsCount--;
                     totalOp--;
                 }
@@ -0,0 +1,233 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log of the successful adds and removes of a set, appended in memory and
+ * written to a file with group commit: the thread that syncs writes and forces
+ * the records of every thread waiting, with one FileChannel.force by batch.
+ *
+ * A record is an operation (one byte) and a key (an int). The log file starts
+ * with a magic number ("SWAL") and a version.
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * When the records are forced to the disk
+     */
+    public enum Sync {
+        // Never, the records are written when the buffer is full, and on close
+        NONE,
+        // One force for all the records appended before it, shared by the waiting threads
+        BATCH,
+        // One force by operation
+        EVERY_OP
+    }
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+
+    private static final int MAGIC = 0x5357414C;
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 5;
+
+    // Size of the buffers of the records, in bytes
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    final Sync sync;
+
+    // File of the current generation
+    private FileChannel channel;
+
+    // Records appended and not written yet, and the buffer written by the syncing thread
+    private ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // Sequence of the last record appended, and of the last one forced
+    private long appended = 0;
+    private long durable = 0;
+
+    // Whether a thread is writing to the file, out of the monitor
+    private boolean flushing = false;
+
+    // Number of forces, to measure the size of the batches
+    private long forces = 0;
+
+    /**
+     * @param path file of the log, created (or replaced)
+     * @param sync when the records are forced to the disk
+     */
+    public WriteAheadLog(Path path, Sync sync) throws IOException {
+        this.sync = sync;
+        this.channel = create(path);
+    }
+
+    private static FileChannel create(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        return channel;
+    }
+
+    /**
+     * Append a record in memory, to call at the linearization point of the
+     * operation: the records of a key must be in the order of its operations
+     *
+     * @param operation ADD or REMOVE
+     * @return the sequence of the record, to pass to commit
+     */
+    public synchronized long append(byte operation, int key) throws IOException {
+        while (pending.remaining() < RECORD_SIZE) {
+            if (flushing)
+                waitFlush();
+            else
+                write(pending);
+        }
+        pending.put(operation).putInt(key);
+        return ++appended;
+    }
+
+    /**
+     * Wait until the record is on the disk, following the sync policy. With
+     * BATCH, the first waiting thread forces the records of all the others.
+     *
+     * @param sequence sequence of the record, returned by append
+     */
+    public void commit(long sequence) throws IOException {
+        if (sync == Sync.NONE)
+            return;
+        ByteBuffer batch;
+        FileChannel file;
+        long upTo;
+        synchronized (this) {
+            while (true) {
+                if (sync == Sync.BATCH && durable >= sequence)
+                    return;
+                if (!flushing)
+                    break;
+                waitFlush();
+            }
+            flushing = true;
+            // The next records go to the spare buffer while this batch is written
+            batch = pending;
+            pending = spare;
+            spare = batch;
+            upTo = appended;
+            file = channel;
+        }
+        boolean forced = false;
+        try {
+            batch.flip();
+            while (batch.hasRemaining())
+                file.write(batch);
+            batch.clear();
+            file.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                if (forced) {
+                    durable = Math.max(durable, upTo);
+                    forces++;
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Force the records to the current file, and continue in a new one
+     *
+     * @param path file of the next generation, created (or replaced)
+     */
+    public synchronized void rotate(Path path) throws IOException {
+        flushAndForce();
+        FileChannel next = create(path);
+        channel.close();
+        channel = next;
+    }
+
+    /**
+     * @return number of forces since the creation of the log
+     */
+    public synchronized long forces() {
+        return forces;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flushAndForce();
+        channel.close();
+    }
+
+    private void flushAndForce() throws IOException {
+        while (flushing)
+            waitFlush();
+        write(pending);
+        channel.force(false);
+        durable = appended;
+        forces++;
+    }
+
+    /**
+     * Write a buffer to the file, holding the monitor and without any other writer
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void waitFlush() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log");
+        }
+    }
+
+    /**
+     * Apply the records of a log file to a set, in order. An incomplete last
+     * record, written during a crash, is ignored.
+     *
+     * @return number of records applied
+     * @throws IOException if the file can not be read, or is not a log
+     */
+    public static long replay(Path path, IntLockfreeSkipListSet set) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            try {
+                if (buffer.getInt() != MAGIC)
+                    throw new IOException(path + " is not a log");
+                int version = buffer.getInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported log version " + version);
+            } catch (BufferUnderflowException e) {
+                throw new IOException(path + " is not a log", e);
+            }
+            long applied = 0;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                byte operation = buffer.get();
+                int key = buffer.getInt();
+                if (operation == ADD)
+                    set.add(key);
+                else if (operation == REMOVE)
+                    set.remove(key);
+                else
+                    throw new IOException("Corrupted record in " + path + " at " + (buffer.position() - RECORD_SIZE));
+                applied++;
+            }
+            return applied;
+        }
+    }
+}